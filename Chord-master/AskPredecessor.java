@@ -1,43 +1,39 @@
-import java.net.InetSocketAddress;
+import java.util.HashMap;
 
 /**
- * Ask predecessor thread that periodically asks for predecessor's keep-alive,
- * and delete predecessor if it's dead.
+ * Ask predecessor task that periodically asks for predecessor's keep-alive,
+ * and delete predecessor if it's dead. One task checks the predecessors of
+ * all rings, asking each distinct node once per round. Node runs one round
+ * every PERIOD milliseconds.
  * @author Chuan Xia
  *
  */
-public class AskPredecessor extends Thread {
+public class AskPredecessor implements Runnable {
+
+	// milliseconds between two rounds
+	public static final long PERIOD = 500;
 	
 	private Node local;
-	private boolean alive;
 	
 	public AskPredecessor(Node _local) {
 		local = _local;
-		alive = true;
 	}
 	
 	@Override
 	public void run() {
-		while (alive) {
-			InetSocketAddress predecessor = local.getPredecessor();
+		HashMap<Peer, Boolean> alive = new HashMap<Peer, Boolean>();
+		for (int r = 0; r < local.getNumRings(); r++) {
+			Peer predecessor = local.getPredecessor(r);
 			if (predecessor != null) {
-				String response = Helper.sendRequest(predecessor, "KEEP");
-				if (response == null || !response.equals("ALIVE")) {
-					local.clearPredecessor();	
+				Boolean ok = alive.get(predecessor);
+				if (ok == null) {
+					ok = Helper.keepAlive(predecessor);
+					alive.put(predecessor, ok);
+				}
+				if (!ok) {
+					local.clearPredecessor(r);
 				}
-
-			}
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
 			}
 		}
 	}
-	
-	public void toDie() {
-		alive = false;
-	}
 }
-
-
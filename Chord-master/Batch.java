@@ -0,0 +1,243 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch API that stores and looks up many records at once. The keys of a
+ * batch are hashed in every ring and sorted, so the node responsible for
+ * each key is found with one FINDSUCC per node rather than per key: the
+ * node found for a key is responsible for every following key up to its
+ * own identifier. The records are then grouped by node and sent in chunks
+ * (PUTBATCH / GETBATCH) of at most Handoff.CHUNK_RECORDS records, WINDOW
+ * chunks at a time over the pooled connections, so a large batch is
+ * limited by bandwidth rather than by round trips.
+ * @author Chuan Xia
+ *
+ */
+
+public class Batch {
+
+	// chunks in flight at once
+	public static final int WINDOW = 32;
+
+	private final Peer contact;
+	private final ExecutorService senders;
+
+	/**
+	 * Constructor
+	 * @param contact: node the lookups are sent to
+	 */
+	public Batch (Peer contact) {
+		this.contact = contact;
+		senders = Executors.newFixedThreadPool(WINDOW, Threads.newFactory("batch"));
+	}
+
+	/**
+	 * Store domain -> IP pairs, with their IP -> domain records, in every
+	 * ring. The nodes copy them to their replicas like single puts.
+	 * @param pairs: Record.DOMAIN records, key the domain and value the IP
+	 * @return number of records (one per pair, direction and ring) not stored
+	 */
+	public long put (List<Record> pairs) {
+		ArrayList<Record> records = new ArrayList<Record>(2 * pairs.size());
+		for (Record p : pairs) {
+			records.add(new Record(Record.DOMAIN, p.getKey(), p.getValue()));
+			records.add(new Record(Record.IP, p.getValue(), p.getKey()));
+		}
+
+		// every chunk sent and its number of records
+		ArrayList<Future<Integer>> sent = new ArrayList<Future<Integer>>();
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		long failed = 0;
+		for (int r = 0; r < Helper.getNumRings(); r++) {
+			Map<Peer, List<Record>> owners = group(records, r);
+			if (owners == null) {
+				failed += records.size();
+				continue;
+			}
+			for (Map.Entry<Peer, List<Record>> e : owners.entrySet()) {
+				for (List<Record> chunk : chunks(e.getValue())) {
+					sent.add(send(e.getKey(), new Message(Message.PUTBATCH, r).withRecords(chunk)));
+					sizes.add(chunk.size());
+				}
+			}
+		}
+		for (int i = 0; i < sent.size(); i++) {
+			failed += result(sent.get(i), sizes.get(i));
+		}
+		return failed;
+	}
+
+	/**
+	 * Look many keys of one store up. Keys are looked up in ring 0 first;
+	 * the keys not found there (or whose node failed) in the next ring,
+	 * and so on.
+	 * @param store: Record.DOMAIN or Record.IP
+	 * @param keys
+	 * @return key -> value of the keys found
+	 */
+	public Map<String, String> get (int store, List<String> keys) {
+		HashMap<String, String> found = new HashMap<String, String>();
+		ArrayList<Record> missing = new ArrayList<Record>(keys.size());
+		for (String k : keys) {
+			missing.add(new Record(store, k, ""));
+		}
+
+		for (int r = 0; r < Helper.getNumRings() && !missing.isEmpty(); r++) {
+			Map<Peer, List<Record>> owners = group(missing, r);
+			if (owners == null) {
+				continue;
+			}
+			ArrayList<Future<Message>> sent = new ArrayList<Future<Message>>();
+			for (Map.Entry<Peer, List<Record>> e : owners.entrySet()) {
+				for (List<Record> chunk : chunks(e.getValue())) {
+					sent.add(request(e.getKey(), new Message(Message.GETBATCH, r).withRecords(chunk)));
+				}
+			}
+			for (Future<Message> f : sent) {
+				Message response = response(f);
+				if (response != null && response.getOpcode() == Message.CHUNK) {
+					for (Record rec : response.getRecords()) {
+						found.put(rec.getKey(), rec.getValue());
+					}
+				}
+			}
+
+			ArrayList<Record> left = new ArrayList<Record>();
+			for (Record rec : missing) {
+				if (!found.containsKey(rec.getKey())) {
+					left.add(rec);
+				}
+			}
+			missing = left;
+		}
+		return found;
+	}
+
+	/**
+	 * Stop the sender threads
+	 */
+	public void close () {
+		senders.shutdown();
+	}
+
+	/**
+	 * Group records by the node responsible for their key in a ring
+	 * @param records
+	 * @param ring_nr
+	 * @return node -> its records, null if the contact node cannot be reached
+	 */
+	private Map<Peer, List<Record>> group (List<Record> records, int ring_nr) {
+
+		// record indexes sorted by the hash of their key
+		final long[] hashes = new long[records.size()];
+		Integer[] order = new Integer[hashes.length];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = Helper.hashString(records.get(i).getKey(), ring_nr);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(hashes[a], hashes[b]);
+			}
+		});
+
+		LinkedHashMap<Peer, List<Record>> ret = new LinkedHashMap<Peer, List<Record>>();
+		Peer owner = null;
+		long first = 0;
+		long last = 0;
+		for (int o : order) {
+			long hash = hashes[o];
+
+			// the owner found covers [first, last], or [first, end of ring) if it wrapped
+			if (owner == null || (last >= first && hash > last)) {
+				owner = Helper.requestPeer(contact, new Message(Message.FINDSUCC, ring_nr).withId(hash));
+				if (owner == null) {
+					return null;
+				}
+				first = hash;
+				last = owner.getId(ring_nr);
+			}
+			List<Record> list = ret.get(owner);
+			if (list == null) {
+				list = new ArrayList<Record>();
+				ret.put(owner, list);
+			}
+			list.add(records.get(o));
+		}
+		return ret;
+	}
+
+	/**
+	 * Split a node's records into chunks of at most Handoff.CHUNK_RECORDS
+	 * records or about Handoff.CHUNK_BYTES bytes
+	 */
+	private static List<List<Record>> chunks (List<Record> records) {
+		ArrayList<List<Record>> ret = new ArrayList<List<Record>>();
+		int start = 0;
+		int bytes = 0;
+		for (int i = 0; i < records.size(); i++) {
+			Record r = records.get(i);
+			bytes += r.getKey().getBytes(StandardCharsets.UTF_8).length + r.getValue().getBytes(StandardCharsets.UTF_8).length;
+			if (i + 1 - start == Handoff.CHUNK_RECORDS || bytes >= Handoff.CHUNK_BYTES || i + 1 == records.size()) {
+				ret.add(records.subList(start, i + 1));
+				start = i + 1;
+				bytes = 0;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Send a PUTBATCH chunk
+	 * @return future of the number of records not stored
+	 */
+	private Future<Integer> send (final Peer owner, final Message request) {
+		return senders.submit(new Callable<Integer>() {
+			public Integer call() {
+				Message response = Helper.sendRequest(Helper.dataAddress(owner.getAddress()), request);
+				return response != null && response.getOpcode() == Message.STORED ? 0 : request.getRecords().size();
+			}
+		});
+	}
+
+	private Future<Message> request (final Peer owner, final Message request) {
+		return senders.submit(new Callable<Message>() {
+			public Message call() {
+				return Helper.sendRequest(Helper.dataAddress(owner.getAddress()), request);
+			}
+		});
+	}
+
+	/**
+	 * Number of records a PUTBATCH chunk did not store
+	 * @param f: from send()
+	 * @param records: number of records in the chunk
+	 * @return all of them if the send itself failed
+	 */
+	private static int result (Future<Integer> f, int records) {
+		Integer failed = response(f);
+		return failed == null ? records : failed;
+	}
+
+	private static <T> T response (Future<T> f) {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
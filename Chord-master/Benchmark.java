@@ -0,0 +1,313 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark class that offers command line benchmarks of a node's
+ * building blocks. Usage:
+ *
+ * 	java Benchmark threads [--nodes=N] [--port=P] [--lookups=L] [--clients=C] [--settle=s] [--workers=n]
+ * 	  start N nodes on the loopback address with platform worker threads,
+ * 	  then with virtual threads, and route L FINDSUCC requests from C
+ * 	  concurrent clients through them: lookup rate, latency and OS threads
+ *
+ * 	java Benchmark hops [--nodes=N] [--rings=K] [--id-bits=m] [--port=P] [--lookups=N] [--settle=s]
+ * 	  start N nodes on the loopback address (ports P..P+N-1), let their
+ * 	  finger tables settle, then route the same random identifiers in every
+ * 	  ring and report the remote hops per lookup
+ *
+ * 	java Benchmark wal [--records=N] [--writers=T] [--fsync=ms] [--dir=path]
+ * 	  write throughput of the write-ahead log with T concurrent writers,
+ * 	  then restart time and lookup speed when recovering from the log
+ * 	  and from memory-mapped segments
+ *
+ * 	java Benchmark micro [--only=a,b] [--threads=T] [--round=ms] [--save=file] [--baseline=file]
+ * 	  CPU cost per operation of hashing (SHA-1 and fast), relative ids, closest finger,
+ * 	  routing requests and the record store, see MicroBenchmark
+ *
+ * @author Chuan Xia
+ *
+ */
+
+public class Benchmark {
+
+	public static void main (String[] args) {
+		new Helper();
+		HashMap<String, String> options = new HashMap<String, String>();
+		args = Chord.parseOptions(args, options);
+		if (!Chord.setRings(options) || !Chord.setReplicas(options)) {
+			System.exit(0);
+		}
+		if (args.length < 1) {
+			System.out.println("Usage: java Benchmark threads|hops|wal|micro [--name=value ...]");
+			System.exit(0);
+		}
+
+		if (args[0].equals("threads")) {
+			benchmarkThreads(options);
+		}
+		else if (args[0].equals("hops")) {
+			benchmarkHops(options);
+		}
+		else if (args[0].equals("wal")) {
+			benchmarkWal(options);
+		}
+		else if (args[0].equals("micro")) {
+			MicroBenchmark.run(options);
+		}
+		else {
+			System.out.println("Unknown benchmark "+args[0]+". Now exit.");
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Start a ring of local nodes in each thread mode and send them N
+	 * FINDSUCC requests over TCP from C concurrent clients, so every
+	 * lookup is routed by the nodes' Listener and Talker workers with the
+	 * remote CLOSEST and YOURSUCC requests of a real lookup. Reports the
+	 * lookup rate and latency, the lookups that failed and how many OS
+	 * threads the process needed.
+	 * @param options
+	 */
+	private static void benchmarkThreads (Map<String, String> options) {
+		int count = Integer.parseInt(options.getOrDefault("nodes", "8"));
+		int port = Integer.parseInt(options.getOrDefault("port", "12000"));
+		int lookups = Integer.parseInt(options.getOrDefault("lookups", "20000"));
+		int clients = Integer.parseInt(options.getOrDefault("clients", "256"));
+		int settle = Integer.parseInt(options.getOrDefault("settle", "10"));
+		int workers = Integer.parseInt(options.getOrDefault("workers", "" + Runtime.getRuntime().availableProcessors() * 4));
+
+		System.out.println(count+" nodes, "+lookups+" lookups from "+clients+" clients, "+workers+" workers per node, settling for "+settle+"s\n");
+		runThreads(Threads.PLATFORM, count, port, lookups, clients, settle, workers);
+		if (Threads.isVirtualSupported()) {
+			runThreads(Threads.VIRTUAL, count, port + count, lookups, clients, settle, workers);
+		}
+		else {
+			System.out.println(Threads.VIRTUAL+": not supported by this JVM (needs Java 21)");
+		}
+	}
+
+	private static void runThreads (String mode, int count, int port, final int lookups, int clients, int settle, int workers) {
+		Threads.setMode(mode);
+		Listener.setWorkers(workers, mode.equals(Threads.VIRTUAL) ? 65536 : 1024);
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		mx.resetPeakThreadCount();
+
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		final ArrayList<Node> nodes = new ArrayList<Node>();
+		for (int i = 0; i < count; i++) {
+			Node node = new Node(new InetSocketAddress(loopback, port + i), Helper.getNumRings());
+			if (!node.join(i == 0 ? node.getAddress() : nodes.get(0).getAddress())) {
+				System.out.println("Node on port "+(port + i)+" could not join. Now exit.");
+				System.exit(1);
+			}
+			nodes.add(node);
+			sleep(200);
+		}
+		sleep(settle * 1000L);
+
+		final long[] latency = new long[lookups];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int t = 0; t < clients; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random();
+					int i;
+					while ((i = next.getAndIncrement()) < lookups) {
+						InetSocketAddress server = nodes.get(random.nextInt(nodes.size())).getAddress();
+						Message req = new Message(Message.FINDSUCC, random.nextInt(Helper.getNumRings())).withId(Helper.randomId(random));
+						long begin = System.nanoTime();
+						Message response = Helper.sendRequest(server, req);
+						latency[i] = System.nanoTime() - begin;
+						if (response == null || response.getOpcode() != Message.FOUNDSUCC) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Node node : nodes) {
+			node.stopAllThreads();
+		}
+
+		Arrays.sort(latency);
+		System.out.println(String.format("%-8s  lookups/s: %9.0f  p50: %7.2fms  p99: %7.2fms  failed: %d  peak OS threads: %5d (%d clients)",
+				mode, lookups / (elapsed / 1e9), latency[lookups / 2] / 1e6, latency[Math.min(lookups - 1, lookups * 99 / 100)] / 1e6,
+				failed.get(), mx.getPeakThreadCount(), clients));
+	}
+
+	/**
+	 * Build a ring of N local nodes and compare how many remote hops a
+	 * lookup takes in each ring. Every identifier is looked up from the same
+	 * random node in every ring, so the rings see the same workload.
+	 * @param options
+	 */
+	private static void benchmarkHops (Map<String, String> options) {
+		int count = Integer.parseInt(options.getOrDefault("nodes", "16"));
+		int port = Integer.parseInt(options.getOrDefault("port", "12000"));
+		int lookups = Integer.parseInt(options.getOrDefault("lookups", "1000"));
+		int settle = Integer.parseInt(options.getOrDefault("settle", "30"));
+		int rings = Helper.getNumRings();
+
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		InetSocketAddress contact = new InetSocketAddress(loopback, port);
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		for (int i = 0; i < count; i++) {
+			Node node = new Node(new InetSocketAddress(loopback, port + i), rings);
+			if (!node.join(i == 0 ? node.getAddress() : contact)) {
+				System.out.println("Node on port "+(port + i)+" could not join. Now exit.");
+				System.exit(1);
+			}
+			nodes.add(node);
+			sleep(200);
+		}
+		System.out.println(count+" nodes, "+rings+" rings, settling for "+settle+"s\n");
+		sleep(settle * 1000L);
+
+		Random random = new Random();
+		int[][] hops = new int[rings][lookups];
+		for (int j = 0; j < lookups; j++) {
+			Node from = nodes.get(random.nextInt(count));
+			long id = Helper.randomId(random);
+			for (int r = 0; r < rings; r++) {
+				from.find_successor(id, r);
+				hops[r][j] = Node.getLastLookupHops();
+			}
+		}
+
+		System.out.println(String.format("log2(N) = %.2f", Math.log(count) / Math.log(2)));
+		for (int r = 0; r < rings; r++) {
+			int[] h = hops[r];
+			Arrays.sort(h);
+			long sum = 0;
+			for (int x : h) {
+				sum += x;
+			}
+			System.out.println(String.format("ring %d  lookups: %6d  hops avg: %5.2f  p50: %3d  p99: %3d  max: %3d",
+					r, lookups, (double) sum / lookups, h[lookups / 2], h[Math.min(lookups - 1, lookups * 99 / 100)], h[lookups - 1]));
+		}
+
+		for (Node node : nodes) {
+			node.stopAllThreads();
+		}
+	}
+
+	/**
+	 * Put N records through a write-ahead log from T threads, then recover
+	 * them into empty stores, once by replaying the log and once by mapping
+	 * the segments they were flushed into.
+	 * @param options
+	 */
+	private static void benchmarkWal (Map<String, String> options) {
+		final int records = Integer.parseInt(options.getOrDefault("records", "200000"));
+		int writers = Integer.parseInt(options.getOrDefault("writers", "16"));
+		int fsync = Integer.parseInt(options.getOrDefault("fsync", "0"));
+		File dir;
+		try {
+			dir = options.containsKey("dir") ? new File(options.get("dir")) : Files.createTempDirectory("wal-bench").toFile();
+			if (dir.exists() && dir.list().length > 0) {
+				System.out.println(dir+" is not empty. Now exit.");
+				return;
+			}
+
+			System.out.println(records+" records, "+writers+" writers, fsync "+(fsync < 0 ? "off" : fsync+"ms")+", in "+dir+"\n");
+			final WriteAheadLog wal = new WriteAheadLog(dir, newStores(), fsync, Long.MAX_VALUE);
+			wal.recover();
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger failed = new AtomicInteger();
+			Thread[] threads = new Thread[writers];
+			long start = System.nanoTime();
+			for (int t = 0; t < writers; t++) {
+				threads[t] = new Thread(new Runnable() {
+					public void run() {
+						int i;
+						while ((i = next.getAndIncrement()) < records) {
+							if (!wal.append(i & 1, "host" + i + ".example.com", "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255))) {
+								failed.incrementAndGet();
+							}
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("write     puts/s: %9.0f  total: %8.1fms  failed: %d", records / (elapsed / 1e9), elapsed / 1e6, failed.get()));
+			System.out.println(wal.summary());
+			wal.close();
+
+			runRecovery("from log", dir, fsync, records);
+
+			// flush everything into segments, then recover from those
+			WriteAheadLog flush = new WriteAheadLog(dir, newStores(), fsync, Long.MAX_VALUE);
+			flush.recover();
+			flush.flush();
+			flush.close();
+			runRecovery("from segments", dir, fsync, records);
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Benchmark failed: "+e);
+		}
+	}
+
+	private static RecordStore[] newStores () {
+		return new RecordStore[] {new RecordStore("domain"), new RecordStore("ip")};
+	}
+
+	private static void runRecovery (String name, File dir, int fsync, int records) throws IOException {
+		RecordStore[] stores = newStores();
+		WriteAheadLog wal = new WriteAheadLog(dir, stores, fsync, Long.MAX_VALUE);
+		long start = System.nanoTime();
+		wal.recover();
+		long elapsed = System.nanoTime() - start;
+
+		// look up random records right after the restart
+		Random random = new Random();
+		int lookups = Math.min(records, 100000);
+		int missing = 0;
+		long lookupStart = System.nanoTime();
+		for (int j = 0; j < lookups; j++) {
+			int i = random.nextInt(records);
+			if (stores[i & 1].get("host" + i + ".example.com") == null) {
+				missing++;
+			}
+		}
+		long lookupElapsed = System.nanoTime() - lookupStart;
+		wal.close();
+		System.out.println(String.format("recover %-14s startup: %8.1fms  heap: %8.1fKB  gets/s: %9.0f  missing: %d",
+				name, elapsed / 1e6, (stores[0].memoryBytes() + stores[1].memoryBytes()) / 1024.0,
+				lookups / (lookupElapsed / 1e9), missing));
+	}
+
+	private static void sleep (long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
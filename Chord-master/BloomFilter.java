@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the keys of a record store. A key the filter does not
+ * contain is certainly not stored, so most lookups of missing keys are
+ * answered without touching the store. Sized for BITS_PER_KEY bits per
+ * key of its capacity, which gives about 1% false positives at capacity.
+ * Keys can be added from many threads at once; there is no removal, the
+ * stores never delete.
+ * @author Chuan Xia
+ *
+ */
+
+public class BloomFilter {
+
+	public static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private final AtomicLongArray words;
+	private final long mask;
+	private final int capacity;
+	private final AtomicLong added = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param capacity: number of keys the filter is sized for
+	 */
+	public BloomFilter (int capacity) {
+		this(capacity, new AtomicLongArray(words(capacity)));
+	}
+
+	private BloomFilter (int capacity, AtomicLongArray words) {
+		this.capacity = capacity;
+		this.words = words;
+		mask = 64L * words.length() - 1;
+	}
+
+	public void add (byte[] key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = (h1 + i * h2) & mask;
+			int w = (int) (bit >>> 6);
+			long b = 1L << bit;
+			long old;
+			while (((old = words.get(w)) & b) == 0 && !words.compareAndSet(w, old, old | b)) {
+			}
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * Check if a key might have been added
+	 * @param key: UTF-8 bytes
+	 * @return false if the key was certainly not added
+	 */
+	public boolean mightContain (byte[] key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = (h1 + i * h2) & mask;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean mightContain (String key) {
+		return mightContain(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Number of add() calls so far, keys added twice are counted twice
+	 * @return count
+	 */
+	public long getAdded () {
+		return added.get();
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	/**
+	 * Size of the bit array
+	 * @return bytes
+	 */
+	public long getBytes () {
+		return 8L * words.length();
+	}
+
+	/**
+	 * Copy of the filter to send to another node or a client
+	 * @return int capacity, then the bit array as longs
+	 */
+	public byte[] toBytes () {
+		ByteBuffer buf = ByteBuffer.allocate(4 + 8 * words.length());
+		buf.putInt(capacity);
+		for (int i = 0; i < words.length(); i++) {
+			buf.putLong(words.get(i));
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Filter received from another node
+	 * @param bytes: see toBytes()
+	 * @return filter, null if bytes is not a filter
+	 */
+	public static BloomFilter fromBytes (byte[] bytes) {
+		if (bytes == null || bytes.length < 4) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		int capacity = buf.getInt();
+		if (capacity < 1 || bytes.length != 4 + 8 * words(capacity)) {
+			return null;
+		}
+		AtomicLongArray words = new AtomicLongArray(words(capacity));
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, buf.getLong());
+		}
+		return new BloomFilter(capacity, words);
+	}
+
+	// a power of two number of 64-bit words, at least one
+	private static int words (int capacity) {
+		long bits = Math.max(64, (long) capacity * BITS_PER_KEY);
+		return (int) (Long.highestOneBit(bits - 1) << 1 >>> 6);
+	}
+
+	// 64-bit FNV-1a, finished with a murmur-style mix
+	private static long hash (byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= b & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
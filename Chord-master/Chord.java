@@ -1,6 +1,10 @@
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -12,8 +16,6 @@ import java.util.Scanner;
 
 public class Chord {
 
-	private static final int NUM_RINGS = 2;
-
 	private static Node m_node;
 	private static InetSocketAddress m_contact;
 	private static Helper m_helper;
@@ -21,6 +23,54 @@ public class Chord {
 	public static void main (String[] args) {
 		
 		m_helper = new Helper();
+
+		// split "--name=value" options from positional arguments
+		HashMap<String, String> options = new HashMap<String, String>();
+		args = parseOptions(args, options);
+		if (options.containsKey("timeout")) {
+			Helper.setReadTimeout(Integer.parseInt(options.get("timeout")));
+		}
+		if (!setRings(options) || !setReplicas(options) || !setVirtualNodes(options)) {
+			System.exit(0);
+		}
+		if (options.containsKey("threads") && !Threads.setMode(options.get("threads"))) {
+			System.out.println("Thread mode "+options.get("threads")+" is not available (virtual threads need Java 21). Now exit.");
+			System.exit(0);
+		}
+
+		// virtual threads are cheap, so by default let many more requests run at once
+		boolean virtual = Threads.getMode().equals(Threads.VIRTUAL);
+		int workers = Integer.parseInt(options.getOrDefault("workers", "" + Runtime.getRuntime().availableProcessors() * 4));
+		int queue = Integer.parseInt(options.getOrDefault("queue", virtual ? "65536" : "1024"));
+		Listener.setWorkers(workers, queue);
+
+		// rings a put must be stored in before it is acknowledged
+		if (options.containsKey("quorum")) {
+			int quorum = Integer.parseInt(options.get("quorum"));
+			if (quorum < 1 || quorum > Helper.getNumRings()) {
+				System.out.println("Write quorum must be in [1, "+Helper.getNumRings()+"]. Now exit.");
+				System.exit(0);
+			}
+			Node.setWriteQuorum(quorum);
+		}
+
+		// records resolved for clients are cached for popular names
+		int readCache = Integer.parseInt(options.getOrDefault("read-cache", "10000"));
+		if (readCache != 0 && readCache < 2) {
+			System.out.println("Read cache must hold at least 2 records, or 0 to turn it off. Now exit.");
+			System.exit(0);
+		}
+		Node.setReadCache(readCache, Long.parseLong(options.getOrDefault("read-cache-ttl", "30")) * 1000);
+
+		// copies of other nodes' Bloom filters spare lookups of missing keys
+		Node.setFilterCache(Long.parseLong(options.getOrDefault("filter-ttl", "5")) * 1000);
+
+		// keep records on disk if a data directory is given
+		if (options.containsKey("data")) {
+			Node.setPersistence(new File(options.get("data")),
+					Integer.parseInt(options.getOrDefault("fsync", "0")),
+					Long.parseLong(options.getOrDefault("flush", "64")) << 20);
+		}
 		
 		// get local machine's ip 
 //		String local_ip = null;
@@ -33,7 +83,7 @@ public class Chord {
 	
         // create node
         //Another Comment
-		m_node = new Node (Helper.createSocketAddress(args[0]+":"+args[1]), NUM_RINGS);
+		m_node = new Node (Helper.createSocketAddress(args[0]+":"+args[1]), Helper.getNumRings());
 		
 		// determine if it's creating or joining a existing ring
 		// create, contact is this node itself
@@ -72,10 +122,11 @@ public class Chord {
 		// begin to take user input, "info" or "quit"
 		Scanner userinput = new Scanner(System.in);
 		while(true) {
-			System.out.println("\nType \"info\" to check this node's data or \n type \"quit\"to leave ring: ");
+			System.out.println("\nType \"info\" to check this node's data, \"stats\" to check latency or \n type \"quit\"to leave ring: ");
 			String command = null;
 			command = userinput.next();
 			if (command.startsWith("quit")) {
+				m_node.leave();
 				m_node.stopAllThreads();
 				System.out.println("Leaving the ring...");
 				System.exit(0);
@@ -84,6 +135,98 @@ public class Chord {
 			else if (command.startsWith("info")) {
 				m_node.printDataStructure();
 			}
+			else if (command.startsWith("stats")) {
+				m_node.printStatistics();
+			}
+		}
+	}
+
+	/**
+	 * Move every "--name=value" argument into options
+	 * @param args: command line arguments
+	 * @param options: map filled with name -> value
+	 * @return the remaining positional arguments
+	 */
+	static String[] parseOptions (String[] args, Map<String, String> options) {
+		ArrayList<String> positional = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq > 0) {
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				}
+				else {
+					options.put(arg.substring(2), "true");
+				}
+			}
+			else {
+				positional.add(arg);
+			}
+		}
+		return positional.toArray(new String[positional.size()]);
+	}
+
+	/**
+	 * Apply the "--rings=K" option, the "--id-bits=m" option and the
+	 * "--hash=a,b,..." option, the algorithm of each ring (the last one
+	 * given for the rings after it); every node and client of an overlay
+	 * must use the same values
+	 * @param options
+	 * @return false (after reporting it) if K, m or an algorithm is not valid
+	 */
+	static boolean setRings (Map<String, String> options) {
+		try {
+			Helper.setNumRings(Integer.parseInt(options.getOrDefault("rings", "" + Helper.DEFAULT_RINGS)));
+		} catch (IllegalArgumentException e) {
+			System.out.println("Number of rings must be in [1, "+Helper.MAX_RINGS+"]. Now exit.");
+			return false;
+		}
+		try {
+			Helper.setIdBits(Integer.parseInt(options.getOrDefault("id-bits", "" + Helper.DEFAULT_ID_BITS)));
+		} catch (IllegalArgumentException e) {
+			System.out.println("Identifier bits must be in ["+Helper.MIN_ID_BITS+", "+Helper.MAX_ID_BITS+"]. Now exit.");
+			return false;
+		}
+		String[] algorithms = options.getOrDefault("hash", KeyHash.SHA1).split(",");
+		for (int r = 0; r < Helper.getNumRings(); r++) {
+			String algorithm = algorithms[Math.min(r, algorithms.length - 1)];
+			if (!KeyHash.setAlgorithm(r, algorithm)) {
+				System.out.println("Unknown hash "+algorithm+", use "+KeyHash.SHA1+" or "+KeyHash.FAST+". Now exit.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Apply the "--replicas=R" option, the number of successors every
+	 * record is copied to in each ring
+	 * @param options
+	 * @return false (after reporting it) if R is not valid
+	 */
+	static boolean setReplicas (Map<String, String> options) {
+		try {
+			Helper.setReplicas(Integer.parseInt(options.getOrDefault("replicas", "" + Helper.DEFAULT_REPLICAS)));
+			return true;
+		} catch (IllegalArgumentException e) {
+			System.out.println("Number of replicas must be in [0, "+Helper.MAX_REPLICAS+"]. Now exit.");
+			return false;
+		}
+	}
+
+	/**
+	 * Apply the "--vnodes=V" option, the number of members of every ring
+	 * each node runs (itself and V - 1 virtual nodes)
+	 * @param options
+	 * @return false (after reporting it) if V is not valid
+	 */
+	static boolean setVirtualNodes (Map<String, String> options) {
+		try {
+			Node.setVirtualNodes(Integer.parseInt(options.getOrDefault("vnodes", "1")));
+			return true;
+		} catch (IllegalArgumentException e) {
+			System.out.println("Number of virtual nodes must be in [1, "+Node.MAX_VIRTUAL_NODES+"]. Now exit.");
+			return false;
 		}
 	}
 }
@@ -1,9 +1,18 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Client class that offers the interface by which users can do search by
@@ -16,12 +25,42 @@ import java.util.Scanner;
 public class Client {
 
 	private static InetSocketAddress localAddress;
+	private static Peer localPeer;
 	private static Helper helper;
 
+	// hedged lookups: query every ring at once and take the first answer
+	private static boolean hedged;
+	private static ExecutorService hedgePool;
+
+	// owners learned from the rings' members, null if --route-ttl=0
+	private static RouteCache routes;
+
+	// copies of the owners' Bloom filters, null if --filter-ttl=0
+	private static FilterCache filters;
+
+	// gets are resolved by the contacted node, which caches popular records
+	private static boolean viaContact;
+
+	// lines of a file handed to the batch API at once, see load() and resolve()
+	private static final int BLOCK = 100000;
+
 	public static void main(String[] args) {
 
 		helper = new Helper();
 
+		HashMap<String, String> options = new HashMap<String, String>();
+		args = Chord.parseOptions(args, options);
+		if (options.containsKey("timeout")) {
+			Helper.setReadTimeout(Integer.parseInt(options.get("timeout")));
+		}
+		if (!Chord.setRings(options) || !Chord.setReplicas(options)) {
+			System.exit(0);
+		}
+		hedged = options.containsKey("hedge");
+		if (hedged) {
+			hedgePool = Executors.newCachedThreadPool(Threads.newFactory("hedge"));
+		}
+
 		// valid args
 		if (args.length == 2) {
 
@@ -33,49 +72,58 @@ public class Client {
 				;
 			}
 
+			localPeer = Peer.of(localAddress);
+			viaContact = options.containsKey("via-contact");
+			long ttl = Long.parseLong(options.getOrDefault("route-ttl", "30"));
+			if (ttl > 0) {
+				routes = new RouteCache(localPeer, ttl * 1000);
+			}
+			long filterTtl = Long.parseLong(options.getOrDefault("filter-ttl", "5"));
+			if (filterTtl > 0) {
+				filters = new FilterCache(filterTtl * 1000);
+			}
+
 			// successfully constructed socket address of the node we are
 			// trying to contact, check if it's alive
-			String response = Helper.sendRequest(localAddress, "KEEP");
-
 			// if it's dead, exit
-			if (response == null || !response.equals("ALIVE")) {
+			if (!Helper.keepAlive(localAddress)) {
 				System.out.println("\nCannot find node you are trying to contact. Now exit.\n");
 				System.exit(0);
 			}
 
 			// it's alive, print connection info
 			System.out.println("Connection to node " + localAddress.getAddress().toString() + ", port "
-					+ localAddress.getPort() + ", position " + Helper.hexIdAndPosition(localAddress) + ".");
+					+ localAddress.getPort() + ", position " + Helper.hexIdAndPosition(localPeer) + ".");
 
 			// check if system is stable
 			boolean pred = false;
 			boolean succ = false;
-			InetSocketAddress pred_addr = Helper.requestAddress(localAddress, "YOURPRE");
-			InetSocketAddress succ_addr = Helper.requestAddress(localAddress, "YOURSUCC");
+			Peer pred_addr = Helper.requestPeer(localPeer, Message.YOURPRE);
+			Peer succ_addr = Helper.requestPeer(localPeer, Message.YOURSUCC);
 			if (pred_addr == null || succ_addr == null) {
 				System.out.println("The node your are contacting is disconnected. Now exit.");
 				System.exit(0);
 			}
-			if (pred_addr.equals(localAddress))
+			if (pred_addr.equals(localPeer))
 				pred = true;
-			if (succ_addr.equals(localAddress))
+			if (succ_addr.equals(localPeer))
 				succ = true;
 
 			// we suppose the system is stable if (1) this node has both valid
 			// predecessor and successor or (2) none of them
 			while (pred ^ succ) {
 				System.out.println("Waiting for the system to be stable...");
-				pred_addr = Helper.requestAddress(localAddress, "YOURPRE");
-				succ_addr = Helper.requestAddress(localAddress, "YOURSUCC");
+				pred_addr = Helper.requestPeer(localPeer, Message.YOURPRE);
+				succ_addr = Helper.requestPeer(localPeer, Message.YOURSUCC);
 				if (pred_addr == null || succ_addr == null) {
 					System.out.println("The node your are contacting is disconnected. Now exit.");
 					System.exit(0);
 				}
-				if (pred_addr.equals(localAddress))
+				if (pred_addr.equals(localPeer))
 					pred = true;
 				else
 					pred = false;
-				if (succ_addr.equals(localAddress))
+				if (succ_addr.equals(localPeer))
 					succ = true;
 				else
 					succ = false;
@@ -86,6 +134,16 @@ public class Client {
 
 			}
 
+			// file-driven modes, run the batch and exit
+			if (options.containsKey("load")) {
+				load(options.get("load"));
+				System.exit(0);
+			}
+			if (options.containsKey("resolve")) {
+				resolve(options.get("resolve"), options.containsKey("reverse"));
+				System.exit(0);
+			}
+
 			// begin to take user input
 			Scanner userinput = new Scanner(System.in);
 			Scanner userinput2 = new Scanner(System.in);
@@ -123,79 +181,11 @@ public class Client {
 						tok = command.split(" ");
 					}
 
-					String ippDomain = getIPport(tok[1], 0);
-
-					String ippIp = getIPport(tok[2], 0);
-
-					String secondDomain = getIPport(tok[1], 1);
-
-					String secondIp = getIPport(tok[2], 1);
-
-					String[] domainTok = ippDomain.split(":");
-					String[] ipTok = ippIp.split(":");
-					String[] secondDomTok = secondDomain.split(":");
-					String[] secondIpTok = secondIp.split(":");
-
-					try {
-						// Socket for node in First Ring
-						Socket ss1 = new Socket(domainTok[0], Integer.parseInt(domainTok[1]) + 2000);
-						Socket ss2 = new Socket(ipTok[0], Integer.parseInt(ipTok[1]) + 2000);
-
-						// Socket for node in Second Ring
-						Socket ss3 = new Socket(secondDomTok[0], Integer.parseInt(secondDomTok[1]) + 2000);
-						Socket ss4 = new Socket(secondIpTok[0], Integer.parseInt(secondIpTok[1]) + 2000);
-
-						//
-						ObjectOutputStream oos1 = new ObjectOutputStream(ss1.getOutputStream());
-						oos1.flush();
-						ObjectOutputStream oos2 = new ObjectOutputStream(ss2.getOutputStream());
-						oos2.flush();
-
-						ObjectOutputStream oos3 = new ObjectOutputStream(ss3.getOutputStream());
-						oos3.flush();
-
-						ObjectOutputStream oos4 = new ObjectOutputStream(ss4.getOutputStream());
-						oos4.flush();
-
-						// Send to node in First Ring
-						oos1.writeObject("putd");
-						oos1.writeObject(tok[1]);
-						oos1.writeObject(tok[2]);
-						oos1.flush();
-
-						// Send to node in First Ring
-						oos2.writeObject("putip");
-						oos2.writeObject(tok[1]);
-						oos2.writeObject(tok[2]);
-						oos2.flush();
-
-						// Send to node in Second Ring
-						oos3.writeObject("putd");
-						oos3.writeObject(tok[1]);
-						oos3.writeObject(tok[2]);
-						oos3.flush();
-
-						// Send to node in Second Ring
-						oos4.writeObject("putip");
-						oos4.writeObject(tok[1]);
-						oos4.writeObject(tok[2]);
-						oos4.flush();
-
+					// the contacted node stores both records in every ring
+					if (put(tok[1], tok[2])) {
 						System.out.println("You putted this: put domain: " + tok[1] + " IP: " + tok[2]);
-
-						Thread.sleep(100);
-						oos1.close();
-						oos2.close();
-						oos3.close();
-						oos4.close();
-						ss1.close();
-						ss2.close();
-						ss3.close();
-						ss4.close();
-					} catch (NumberFormatException | IOException e) {
-						e.printStackTrace();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+					} else {
+						System.out.println("Could not store domain: " + tok[1] + " IP: " + tok[2] + " in enough rings.");
 					}
 
 					// GET
@@ -218,50 +208,26 @@ public class Client {
 							tok = command.split(" ");
 						}
 
-						String ipp = getIPport(tok[1]);
-						String[] ipptk = ipp.split(":");
-
-						try {
-							Socket ss = new Socket(ipptk[0], Integer.parseInt(ipptk[1]) + 2000);
-
-							ObjectOutputStream oos = new ObjectOutputStream(ss.getOutputStream());
-							ObjectInputStream ios = new ObjectInputStream(ss.getInputStream());
-							oos.flush();
-							oos.writeObject("getd");
-							oos.writeObject(tok[1]);
-							oos.flush();
-							String ret = (String) ios.readObject();
-
-							if (ret != null) {
-								System.out.println("The IP of Domain " + tok[1] + " is: " + ret);
-							} else {
-                                for (int i = 0; i < 2; i++) {
-
-                                    System.out.println("Could not find " + tok[1] + ". Retry in RING" + i);
-                                    ipp = getIPport(tok[1], i);
-                                    ipptk = ipp.split(":");
-                                    ss = new Socket(ipptk[0], Integer.parseInt(ipptk[1]) + 2000);
-
-                                    oos = new ObjectOutputStream(ss.getOutputStream());
-                                    ios = new ObjectInputStream(ss.getInputStream());
-                                    oos.flush();
-                                    oos.writeObject("getd");
-                                    oos.writeObject(tok[1]);
-                                    oos.flush();
-                                    ret = (String) ios.readObject();
-                                    if (ret != null) {
-                                        System.out.println("RING" + i +" The IP of Domain " + tok[1] + " is: " + ret);
-                                        break;
-                                    }
-                                }
+						int first = closestRing(tok[1]);
+						String ret = hedged ? hedgedGet(Message.GETD, tok[1]) : lookup(Message.GETD, tok[1], first);
+
+						if (ret != null) {
+							System.out.println("The IP of Domain " + tok[1] + " is: " + ret);
+						} else if (hedged) {
+							System.out.println("Could not find " + tok[1] + " in any ring.");
+						} else {
+							// every other ring, the closest one was just asked
+							for (int i = 0; i < Helper.getNumRings(); i++) {
+								if (i == first) {
+									continue;
+								}
+								System.out.println("Could not find " + tok[1] + ". Retry in RING" + i);
+								ret = lookup(Message.GETD, tok[1], i);
+								if (ret != null) {
+									System.out.println("RING" + i +" The IP of Domain " + tok[1] + " is: " + ret);
+									break;
+								}
 							}
-
-							ios.close();
-							oos.close();
-							ss.close();
-
-						} catch (NumberFormatException | IOException | ClassNotFoundException e) {
-							e.printStackTrace();
 						}
 					} else if (get.toUpperCase().equals("REVERSE")) {
 						System.out.println(" Insert get <IP>");
@@ -275,53 +241,26 @@ public class Client {
 							command = userinput3.nextLine();
 							tok = command.split(" ");
 						}
-						String ipp = getIPport(tok[1]);
-						String[] ipptk = ipp.split(":");
-
-						try {
-							Socket ss = new Socket(ipptk[0], Integer.parseInt(ipptk[1]) + 2000);
-
-							ObjectOutputStream oos = new ObjectOutputStream(ss.getOutputStream());
-							ObjectInputStream ios = new ObjectInputStream(ss.getInputStream());
-							oos.flush();
-
-							// Write to Node
-							oos.writeObject("getip");
-							oos.writeObject(tok[1]);
-							oos.flush();
-
-							String ret = (String) ios.readObject();
-							// Receive from Node
-							if (ret != null) {
-								System.out.println("The Domain of IP " + tok[1] + " is: " + ret);
-							} else {
-								for (int i = 0; i < 2; i++) {
-
-									System.out.println("Could not find " + tok[1] + ". Retry in RING" + i);
-									ipp = getIPport(tok[1], i);
-									ipptk = ipp.split(":");
-									ss = new Socket(ipptk[0], Integer.parseInt(ipptk[1]) + 2000);
-
-									oos = new ObjectOutputStream(ss.getOutputStream());
-									ios = new ObjectInputStream(ss.getInputStream());
-									oos.flush();
-									oos.writeObject("getip");
-									oos.writeObject(tok[1]);
-									oos.flush();
-									ret = (String) ios.readObject();
-									if (ret != null) {
-										System.out.println("RING" + i +" The Domain of IP " + tok[1] + " is: " + ret);
-										break;
-									}
+						int first = closestRing(tok[1]);
+						String ret = hedged ? hedgedGet(Message.GETIP, tok[1]) : lookup(Message.GETIP, tok[1], first);
+
+						if (ret != null) {
+							System.out.println("The Domain of IP " + tok[1] + " is: " + ret);
+						} else if (hedged) {
+							System.out.println("Could not find " + tok[1] + " in any ring.");
+						} else {
+							// every other ring, the closest one was just asked
+							for (int i = 0; i < Helper.getNumRings(); i++) {
+								if (i == first) {
+									continue;
+								}
+								System.out.println("Could not find " + tok[1] + ". Retry in RING" + i);
+								ret = lookup(Message.GETIP, tok[1], i);
+								if (ret != null) {
+									System.out.println("RING" + i +" The Domain of IP " + tok[1] + " is: " + ret);
+									break;
 								}
 							}
-
-							ios.close();
-							oos.close();
-							ss.close();
-
-						} catch (NumberFormatException | IOException | ClassNotFoundException e) {
-							e.printStackTrace();
 						}
 					}else {
 						System.out.println("Sorry, Try again.");
@@ -334,32 +273,210 @@ public class Client {
 		}
 	}
 
-	private static String getIPport(String command) {
-		int ring_nr = -1;
-		return getIPport(command, ring_nr);
+	/**
+	 * Find the ring where the key is closest after the contacted node,
+	 * i.e. the ring the lookup is expected to take the fewest hops in
+	 * @param command: key
+	 * @return ring number
+	 */
+	private static int closestRing(String command) {
+		int ring_nr = 0;
+		long closest = Helper.computeRelativeId(Helper.hashString(command, 0), localPeer.getId(0));
+		for (int r = 1; r < Helper.getNumRings(); r++) {
+			long relative_id = Helper.computeRelativeId(Helper.hashString(command, r), localPeer.getId(r));
+			if (relative_id < closest) {
+				closest = relative_id;
+				ring_nr = r;
+			}
+		}
+		return ring_nr;
 	}
 
-	private static String getIPport(String command, int ring_nr) {
-		long hash = Helper.hashString(command);
+	/**
+	 * Store every "<domain> <IP>" line of a file with the batch API, in
+	 * blocks of BLOCK lines. Empty lines and lines starting with # are
+	 * skipped.
+	 * @param file
+	 */
+	private static void load(String file) {
+		Batch batch = new Batch(localPeer);
+		long start = System.nanoTime();
+		long n = 0;
+		long failed = 0;
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			ArrayList<Record> block = new ArrayList<Record>(BLOCK);
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] tok = line.trim().split("\\s+");
+				if (tok.length != 2 || tok[0].startsWith("#")) {
+					continue;
+				}
+				block.add(new Record(Record.DOMAIN, tok[0], tok[1]));
+				if (block.size() == BLOCK) {
+					failed += batch.put(block);
+					n += block.size();
+					block.clear();
+				}
+			}
+			failed += batch.put(block);
+			n += block.size();
+		} catch (IOException e) {
+			System.out.println("Cannot read "+file+": "+e.getMessage());
+		} finally {
+			batch.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Loaded %d domains in %.1fs (%.0f/s), %d of %d record writes failed.",
+				n, seconds, n / seconds, failed, 2 * n * Helper.getNumRings()));
+	}
 
-		//System.out.println("Hash value is " + Long.toHexString(hash));
+	/**
+	 * Look every domain (or IP) line of a file up with the batch API and
+	 * print "<key> <value>" per line, "null" as value if not found
+	 * @param file
+	 * @param reverse: lines are IPs
+	 */
+	private static void resolve(String file, boolean reverse) {
+		Batch batch = new Batch(localPeer);
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			ArrayList<String> block = new ArrayList<String>(BLOCK);
+			String line = "";
+			while (line != null) {
+				line = in.readLine();
+				if (line != null && !line.trim().isEmpty() && !line.startsWith("#")) {
+					block.add(line.trim());
+				}
+				if (block.size() == BLOCK || (line == null && !block.isEmpty())) {
+					Map<String, String> found = batch.get(reverse ? Record.IP : Record.DOMAIN, block);
+					for (String key : block) {
+						System.out.println(key + " " + found.get(key));
+					}
+					block.clear();
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot read "+file+": "+e.getMessage());
+		} finally {
+			batch.close();
+		}
+	}
 
-		InetSocketAddress result;
-		if (ring_nr == -1) {
-			// dont care about rings, find the closest server for hash
-			result = Helper.requestAddress(localAddress, "FINDSUCC_" + hash);
-		} else {
-			// care about rings, find the responsible server in specified ring
-			result = Helper.requestAddress(localAddress, "FINDSUCC_" + hash, ring_nr);
+	/**
+	 * Look a record up in every ring at once (FINDSUCC, then the get on the
+	 * node found) and return the first value found. The lookups still
+	 * running are then cancelled, so a ring that is stabilizing or has a
+	 * slow node does not hold up the answer.
+	 * @param type: GETD or GETIP
+	 * @param key: domain or IP
+	 * @return value, null if no ring has it
+	 */
+	private static String hedgedGet(final byte type, final String key) {
+		int rings = Helper.getNumRings();
+		CompletionService<String> done = new ExecutorCompletionService<String>(hedgePool);
+		ArrayList<Future<String>> lookups = new ArrayList<Future<String>>();
+		for (int r = 0; r < rings; r++) {
+			final int ring_nr = r;
+			lookups.add(done.submit(new Callable<String>() {
+				public String call() {
+					return lookup(type, key, ring_nr);
+				}
+			}));
 		}
 
-		// if fail to send request, local node is disconnected, exit
-		if (result == null) {
-			System.out.println("The node you are contacting is disconnected. Now exit.");
-			System.exit(0);
+		String ret = null;
+		try {
+			for (int i = 0; i < rings && ret == null; i++) {
+				try {
+					ret = done.take().get();
+				} catch (ExecutionException e) {
+					// this ring failed, wait for the others
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Future<String> lookup : lookups) {
+				lookup.cancel(true);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Look a record up in one ring: on the contacted node with
+	 * --via-contact, else straight on the owner known by the
+	 * route cache if there is one. Otherwise, or if that misses, the
+	 * contact node routes the lookup; if the node responsible for the key
+	 * cannot be reached, its successors are asked in turn, they hold the
+	 * replicas of its records. A node whose filter says it does not have
+	 * the key is not asked, the key is missing.
+	 * @param type: GETD or GETIP
+	 * @param key: domain or IP
+	 * @param ring_nr
+	 * @return value, null if not found or no replica can be reached
+	 */
+	private static String lookup(byte type, String key, int ring_nr) {
+		long id = Helper.hashString(key, ring_nr);
+
+		// the contacted node answers from its read cache or asks the owner
+		if (viaContact) {
+			Message response = Helper.sendRequest(Helper.dataAddress(localAddress),
+					new Message(Message.RESOLVE, ring_nr).withStore(store(type)).withKey(key));
+			if (response != null && response.getOpcode() == Message.VALUE) {
+				return response.getValue();
+			}
 		}
 
-		return result.getAddress().toString().substring(1, result.getAddress().toString().length()) + ":"
-				+ result.getPort();
+		// straight to the cached owner; if it redirects or does not answer
+		// the ring's members are learned again next time. The cached owner
+		// may no longer be responsible for the key, so its filter ruling the
+		// key out only skips the request, the lookup is still routed
+		if (routes != null) {
+			Peer owner = routes.owner(id, ring_nr);
+			if (owner != null && (filters == null || filters.mightContain(owner, store(type), key))) {
+				Message response = Helper.sendRequest(Helper.dataAddress(owner.getAddress()), new Message(type, ring_nr).withKey(key));
+				if (response != null && response.getOpcode() == Message.VALUE && response.getValue() != null) {
+					return response.getValue();
+				}
+				if (response == null || response.getOpcode() != Message.VALUE) {
+					routes.invalidate(ring_nr);
+				}
+			}
+		}
+		for (int i = 0; i <= Helper.getReplicas(); i++) {
+			Peer node = Helper.requestPeer(localPeer, new Message(Message.FINDSUCC, ring_nr).withId(id));
+			if (node == null) {
+				return null;
+			}
+			if (filters != null && !filters.mightContain(node, store(type), key)) {
+				return null;
+			}
+			Message response = Helper.sendRequest(Helper.dataAddress(node.getAddress()), new Message(type).withKey(key));
+			if (response != null) {
+				return response.getValue();
+			}
+			id = Helper.ithStart(node.getId(ring_nr), 1);
+		}
+		return null;
+	}
+
+	private static int store(byte type) {
+		return type == Message.GETD ? Record.DOMAIN : Record.IP;
+	}
+
+	/**
+	 * Store a domain and its IP with one PUT to the contacted node, which
+	 * writes both records in every ring
+	 * @param domain
+	 * @param ip
+	 * @return true if the node reached its write quorum
+	 */
+	private static boolean put(String domain, String ip) {
+		Message response = Helper.sendRequest(Helper.dataAddress(localAddress), new Message(Message.PUT).withKey(domain).withValue(ip));
+		if (filters != null) {
+			filters.wrote(Record.DOMAIN, domain);
+			filters.wrote(Record.IP, ip);
+		}
+		return response != null && response.getOpcode() == Message.STORED;
 	}
 }
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codec of the binary wire protocol, used on both ports and by Client.
+ * A frame is
+ *
+ * 	int length      number of bytes after this field
+ * 	byte opcode     see Message
+ * 	int request id
+ * 	byte ring       -1 for "any ring"
+ * 	short fields    which optional fields follow, bit set per field:
+ * 	  1 id          identifier: unsigned int, or long if identifiers are
+ * 	                wider than 32 bits (see Helper.setIdBits())
+ * 	  2 peer        byte n (4 or 16), n raw IP bytes, unsigned short port,
+ * 	                byte virtual node number, byte k, k identifiers: the
+ * 	                peer's in every ring
+ * 	  4 key         unsigned short n, n bytes UTF-8
+ * 	  8 value       unsigned short n, n bytes UTF-8
+ * 	  16 from       identifier, start of a range
+ * 	  32 store      byte, index of a node's record store
+ * 	  64 records    int n, n times (byte store, key, value) with key and
+ * 	                value encoded like the fields above
+ * 	  128 peers     byte n, n peers encoded like the peer field
+ * 	  256 bytes     int n, n raw bytes, e.g. a BloomFilter
+ * 	  512 vnode     byte, virtual node a routing request is for
+ *
+ * @author Chuan Xia
+ *
+ */
+
+public class Codec {
+
+	// frames longer than this are treated as a broken stream
+	public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	private static final int HEADER = 1 + 4 + 1 + 2;
+
+	private static final int ID = 1;
+	private static final int PEER = 2;
+	private static final int KEY = 4;
+	private static final int VALUE = 8;
+	private static final int FROM = 16;
+	private static final int STORE = 32;
+	private static final int RECORDS = 64;
+	private static final int PEERS = 128;
+	private static final int BYTES = 256;
+	private static final int VNODE = 512;
+
+	/**
+	 * Stamp a request id into an encoded frame, so the message it was
+	 * encoded from is left as it is
+	 * @param frame: from encode(), not yet written
+	 * @param requestId
+	 */
+	public static void setRequestId (ByteBuffer frame, int requestId) {
+		frame.putInt(frame.position() + 4 + 1, requestId);
+	}
+
+	/**
+	 * Encode a message into one frame
+	 * @param m
+	 * @return buffer holding the frame, ready to be written
+	 */
+	public static ByteBuffer encode (Message m) {
+		byte[] key = m.key == null ? null : m.key.getBytes(StandardCharsets.UTF_8);
+		byte[] value = m.value == null ? null : m.value.getBytes(StandardCharsets.UTF_8);
+
+		int fields = 0;
+		int length = HEADER;
+		if (m.hasId) {
+			fields |= ID;
+			length += idLength();
+		}
+		if (m.peer != null) {
+			fields |= PEER;
+			length += peerLength(m.peer);
+		}
+		if (key != null) {
+			fields |= KEY;
+			length += 2 + key.length;
+		}
+		if (value != null) {
+			fields |= VALUE;
+			length += 2 + value.length;
+		}
+		if (m.hasFrom) {
+			fields |= FROM;
+			length += idLength();
+		}
+		if (m.store != 0) {
+			fields |= STORE;
+			length += 1;
+		}
+		byte[][] records = null;
+		if (m.records != null) {
+			fields |= RECORDS;
+			records = new byte[2 * m.records.size()][];
+			length += 4;
+			for (int i = 0; i < m.records.size(); i++) {
+				Record r = m.records.get(i);
+				records[2 * i] = r.getKey().getBytes(StandardCharsets.UTF_8);
+				records[2 * i + 1] = r.getValue().getBytes(StandardCharsets.UTF_8);
+				length += 1 + 2 + records[2 * i].length + 2 + records[2 * i + 1].length;
+			}
+		}
+
+		if (m.peers != null) {
+			fields |= PEERS;
+			length += 1;
+			for (Peer p : m.peers) {
+				length += peerLength(p);
+			}
+		}
+
+		if (m.bytes != null) {
+			fields |= BYTES;
+			length += 4 + m.bytes.length;
+		}
+		if (m.vnode != 0) {
+			fields |= VNODE;
+			length += 1;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + length);
+		buf.putInt(length);
+		buf.put(m.opcode);
+		buf.putInt(m.requestId);
+		buf.put((byte) m.ring);
+		buf.putShort((short) fields);
+		if (m.hasId) {
+			putId(buf, m.id);
+		}
+		if (m.peer != null) {
+			putPeer(buf, m.peer);
+		}
+		if (key != null) {
+			putBytes(buf, key);
+		}
+		if (value != null) {
+			putBytes(buf, value);
+		}
+		if (m.hasFrom) {
+			putId(buf, m.from);
+		}
+		if (m.store != 0) {
+			buf.put((byte) m.store);
+		}
+		if (records != null) {
+			buf.putInt(m.records.size());
+			for (int i = 0; i < m.records.size(); i++) {
+				buf.put((byte) m.records.get(i).getStore());
+				putBytes(buf, records[2 * i]);
+				putBytes(buf, records[2 * i + 1]);
+			}
+		}
+		if (m.peers != null) {
+			buf.put((byte) m.peers.size());
+			for (Peer p : m.peers) {
+				putPeer(buf, p);
+			}
+		}
+		if (m.bytes != null) {
+			buf.putInt(m.bytes.length);
+			buf.put(m.bytes);
+		}
+		if (m.vnode != 0) {
+			buf.put((byte) m.vnode);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Decode the body of one frame (everything after the length field)
+	 * @param buf: positioned at the opcode, limited to the end of the frame
+	 * @return message
+	 * @throws IOException if the frame is malformed
+	 */
+	public static Message decode (ByteBuffer buf) throws IOException {
+		try {
+			Message m = new Message(buf.get());
+			m.requestId = buf.getInt();
+			m.ring = buf.get();
+			int fields = buf.getShort() & 0xFFFF;
+			if ((fields & ID) != 0) {
+				m.withId(getId(buf));
+			}
+			if ((fields & PEER) != 0) {
+				m.peer = getPeer(buf);
+			}
+			if ((fields & KEY) != 0) {
+				m.key = getString(buf);
+			}
+			if ((fields & VALUE) != 0) {
+				m.value = getString(buf);
+			}
+			if ((fields & FROM) != 0) {
+				m.withFrom(getId(buf));
+			}
+			if ((fields & STORE) != 0) {
+				m.store = buf.get();
+			}
+			if ((fields & RECORDS) != 0) {
+				int n = buf.getInt();
+				if (n < 0 || n > buf.remaining() / 5) {
+					throw new IOException("Bad record count " + n);
+				}
+				ArrayList<Record> records = new ArrayList<Record>(n);
+				for (int i = 0; i < n; i++) {
+					int store = buf.get();
+					records.add(new Record(store, getString(buf), getString(buf)));
+				}
+				m.records = records;
+			}
+			if ((fields & PEERS) != 0) {
+				int n = buf.get() & 0xFF;
+				List<Peer> peers = new ArrayList<Peer>(n);
+				for (int i = 0; i < n; i++) {
+					peers.add(getPeer(buf));
+				}
+				m.peers = peers;
+			}
+			if ((fields & BYTES) != 0) {
+				int n = buf.getInt();
+				if (n < 0 || n > buf.remaining()) {
+					throw new IOException("Bad byte count " + n);
+				}
+				m.bytes = new byte[n];
+				buf.get(m.bytes);
+			}
+			if ((fields & VNODE) != 0) {
+				m.vnode = buf.get() & 0xFF;
+			}
+			return m;
+		} catch (RuntimeException | UnknownHostException e) {
+			throw new IOException("Malformed frame", e);
+		}
+	}
+
+	/**
+	 * Check a frame length read from the stream
+	 * @param length
+	 * @throws IOException if it cannot be a frame
+	 */
+	public static void checkLength (int length) throws IOException {
+		if (length < HEADER || length > MAX_FRAME) {
+			throw new IOException("Bad frame length " + length);
+		}
+	}
+
+	private static int peerLength (Peer peer) {
+		return 1 + peer.getAddress().getAddress().getAddress().length + 2 + 1 + 1 + idLength() * peer.getRings();
+	}
+
+	// bytes of an identifier on the wire
+	private static int idLength () {
+		return Helper.getIdBits() > 32 ? 8 : 4;
+	}
+
+	private static void putId (ByteBuffer buf, long id) {
+		if (Helper.getIdBits() > 32) {
+			buf.putLong(id);
+		}
+		else {
+			buf.putInt((int) id);
+		}
+	}
+
+	private static long getId (ByteBuffer buf) {
+		return Helper.getIdBits() > 32 ? buf.getLong() : buf.getInt() & 0xFFFFFFFFL;
+	}
+
+	private static void putPeer (ByteBuffer buf, Peer peer) {
+		byte[] ip = peer.getAddress().getAddress().getAddress();
+		buf.put((byte) ip.length);
+		buf.put(ip);
+		buf.putShort((short) peer.getAddress().getPort());
+		buf.put((byte) peer.getVnode());
+		buf.put((byte) peer.getRings());
+		for (int i = 0; i < peer.getRings(); i++) {
+			putId(buf, peer.getId(i));
+		}
+	}
+
+	private static Peer getPeer (ByteBuffer buf) throws UnknownHostException {
+		byte[] ip = new byte[buf.get()];
+		buf.get(ip);
+		int port = buf.getShort() & 0xFFFF;
+		int vnode = buf.get() & 0xFF;
+		long[] ids = new long[buf.get()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = getId(buf);
+		}
+		return new Peer(new InetSocketAddress(InetAddress.getByAddress(ip), port), vnode, ids);
+	}
+
+	private static void putBytes (ByteBuffer buf, byte[] bytes) {
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Field longer than 65535 bytes");
+		}
+		buf.putShort((short) bytes.length);
+		buf.put(bytes);
+	}
+
+	private static String getString (ByteBuffer buf) {
+		int length = buf.getShort() & 0xFFFF;
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+}
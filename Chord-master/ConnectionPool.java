@@ -0,0 +1,290 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection pool that keeps one long-lived connection per peer and
+ * multiplexes requests over it. Every request carries a request id that
+ * its response repeats (see Codec), so requests sent by different threads
+ * can be in flight on the same connection at once. Requests to a node are
+ * served by its Listener.
+ * A write has the request's timeout as its deadline, waiting for the
+ * connection included: a peer that stops reading would otherwise block
+ * every sender on its connection. A watchdog thread evicts a connection
+ * whose write is past its deadline, which closes the socket under it.
+ * @author Chuan Xia
+ *
+ */
+
+public class ConnectionPool implements Transport {
+
+	private final ConcurrentHashMap<InetSocketAddress, PeerConnection> connections;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	// how often the watchdog looks for writes past their deadline
+	private static final long WATCHDOG_MILLIS = 50;
+
+	public ConnectionPool () {
+		connections = new ConcurrentHashMap<InetSocketAddress, PeerConnection>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+
+		Thread watchdog = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(WATCHDOG_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					long now = System.nanoTime();
+					for (PeerConnection conn : connections.values()) {
+						long deadline = conn.writeDeadline;
+						if (deadline != 0 && now - deadline > 0) {
+							evict(conn.server, conn);
+						}
+					}
+				}
+			}
+		}, "pool-watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+
+	/**
+	 * Send request to server over its pooled connection and wait for the response
+	 * @param server
+	 * @param req
+	 * @param timeout: milliseconds to wait for the response, 0 waits forever
+	 * @return response, might be null if
+	 * (1) cannot connect to server or write to the connection
+	 * (2) no response within timeout
+	 */
+	public Message request (InetSocketAddress server, Message req, int timeout) {
+		PeerConnection conn;
+		try {
+			conn = getConnection(server, timeout);
+		} catch (IOException e) {
+			return null;
+		}
+
+		int id = conn.nextId.incrementAndGet();
+		CompletableFuture<Message> pending = new CompletableFuture<Message>();
+		conn.pending.put(id, pending);
+		try {
+			if (conn.closed) {
+				throw new IOException("Connection to " + server + " closed");
+			}
+			ByteBuffer frame = Codec.encode(req);
+			Codec.setRequestId(frame, id);
+			conn.write(frame, timeout);
+			if (timeout > 0) {
+				return pending.get(timeout, TimeUnit.MILLISECONDS);
+			}
+			return pending.get();
+		} catch (IOException | ExecutionException e) {
+			// connection is broken, drop it so the next request reconnects
+			evict(server, conn);
+			return null;
+		} catch (TimeoutException e) {
+			// the connection may still be fine, the server is just slow
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			conn.pending.remove(id);
+		}
+	}
+
+	public Server listen (Node node) {
+		return new Listener(node);
+	}
+
+	/**
+	 * Close and forget the connection to server, e.g. after it failed KEEP
+	 * @param server
+	 */
+	public void evict (InetSocketAddress server) {
+		PeerConnection conn = connections.get(server);
+		if (conn != null) {
+			evict(server, conn);
+		}
+	}
+
+	private void evict (InetSocketAddress server, PeerConnection conn) {
+		if (connections.remove(server, conn)) {
+			evictions.incrementAndGet();
+		}
+		conn.close();
+	}
+
+	/**
+	 * Get the pooled connection to server, open one if there is none
+	 * @param server
+	 * @param timeout: connect timeout in milliseconds
+	 * @return connection
+	 * @throws IOException if cannot connect to server
+	 */
+	private PeerConnection getConnection (InetSocketAddress server, int timeout) throws IOException {
+		PeerConnection conn = connections.get(server);
+		if (conn != null && !conn.closed) {
+			hits.incrementAndGet();
+			return conn;
+		}
+		misses.incrementAndGet();
+		if (conn != null) {
+			connections.remove(server, conn);
+		}
+
+		PeerConnection created = new PeerConnection(server, timeout);
+		PeerConnection existing = connections.putIfAbsent(server, created);
+		if (existing != null) {
+			// another thread connected first, use its connection
+			created.close();
+			return existing;
+		}
+		created.start();
+		return created;
+	}
+
+	public long getHits () {
+		return hits.get();
+	}
+
+	public long getMisses () {
+		return misses.get();
+	}
+
+	public long getEvictions () {
+		return evictions.get();
+	}
+
+	public int size () {
+		return connections.size();
+	}
+
+	/**
+	 * Summary line of the pool counters
+	 * @return summary string
+	 */
+	public String summary () {
+		return "connection pool: open=" + size() + " hits=" + getHits()
+				+ " misses=" + getMisses() + " evictions=" + getEvictions();
+	}
+
+	/**
+	 * One framed connection to a peer. A reader thread hands every
+	 * response line to the request waiting for its id.
+	 */
+	private class PeerConnection implements Runnable {
+
+		private final InetSocketAddress server;
+		private final Socket socket;
+		private final OutputStream output;
+		private final AtomicInteger nextId;
+		private final ConcurrentHashMap<Integer, CompletableFuture<Message>> pending;
+		private final ReentrantLock writing;
+		private volatile boolean closed;
+
+		// System.nanoTime() by which the write in progress must be done,
+		// 0 if none is or it has no deadline
+		private volatile long writeDeadline;
+
+		PeerConnection (InetSocketAddress server, int timeout) throws IOException {
+			this.server = server;
+			this.socket = new Socket();
+			this.socket.setTcpNoDelay(true);
+			this.socket.connect(server, timeout);
+			this.output = socket.getOutputStream();
+			this.nextId = new AtomicInteger();
+			this.pending = new ConcurrentHashMap<Integer, CompletableFuture<Message>>();
+			this.writing = new ReentrantLock();
+			this.closed = false;
+		}
+
+		void start () {
+			Thread reader = new Thread(this, "pool-reader-" + server);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Write one frame, one sender at a time
+		 * @param frame
+		 * @param timeout: milliseconds to get the write done, 0 waits forever
+		 * @throws IOException if the connection is broken, or the other
+		 * senders' writes do not let this one start in time
+		 * @throws InterruptedException
+		 */
+		void write (ByteBuffer frame, int timeout) throws IOException, InterruptedException {
+			long deadline = 0;
+			if (timeout > 0) {
+				deadline = System.nanoTime() + timeout * 1000000L;
+				if (!writing.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+					throw new IOException("Write to " + server + " timed out");
+				}
+			}
+			else {
+				writing.lockInterruptibly();
+			}
+			try {
+				writeDeadline = deadline;
+				output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+				output.flush();
+			} finally {
+				writeDeadline = 0;
+				writing.unlock();
+			}
+		}
+
+		@Override
+		public void run () {
+			try {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (true) {
+					int length = input.readInt();
+					Codec.checkLength(length);
+					byte[] frame = new byte[length];
+					input.readFully(frame);
+					Message response = Codec.decode(ByteBuffer.wrap(frame));
+					CompletableFuture<Message> waiting = pending.get(response.requestId);
+					if (waiting != null) {
+						waiting.complete(response);
+					}
+				}
+			} catch (IOException e) {
+				// fall through, connection is unusable
+			}
+			evict(server, this);
+		}
+
+		void close () {
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do with a broken socket
+			}
+			IOException broken = new IOException("Connection to " + server + " closed");
+			for (CompletableFuture<Message> waiting : pending.values()) {
+				waiting.completeExceptionally(broken);
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies of other nodes' BloomFilters (see Message.FILTER), one per node
+ * and store (a node's virtual nodes share its stores and so its copy), so a lookup of a key the node responsible for it does not
+ * have is answered without sending it the request. Each copy is used for
+ * a TTL, so a key stored on the node after the copy was fetched may be
+ * reported missing until the copy expires. Writes the owner of the cache
+ * knows about do not wait for that: it drops the copies of the nodes it
+ * wrote to (invalidate()), or if it does not know them, the keys it wrote
+ * are not ruled out for a TTL (wrote()).
+ * @author Chuan Xia
+ *
+ */
+
+public class FilterCache {
+
+	private final long ttlMillis;
+	private final ConcurrentHashMap<InetSocketAddress, Entry[]> nodes = new ConcurrentHashMap<InetSocketAddress, Entry[]>();
+
+	// keys written through the owner of the cache, store/key -> until when
+	// no copy may rule them out
+	private final ConcurrentHashMap<String, Long> written = new ConcurrentHashMap<String, Long>();
+
+	// statistics, see summary()
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong negatives = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param ttlMillis: how long a copy of a filter is used
+	 */
+	public FilterCache (long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Check if a node might store a key, fetching its filter if needed
+	 * @param node
+	 * @param store: Record.DOMAIN or Record.IP
+	 * @param key
+	 * @return false if the node certainly does not store the key, true if
+	 * it might or its filter cannot be fetched
+	 */
+	public boolean mightContain (Peer node, int store, String key) {
+		Entry[] entries = nodes.get(node.getAddress());
+		if (entries == null) {
+			entries = new Entry[Record.STORES];
+			Entry[] old = nodes.putIfAbsent(node.getAddress(), entries);
+			entries = old == null ? entries : old;
+		}
+		Entry e = entries[store];
+		long now = System.currentTimeMillis();
+		if (e == null || now > e.expires) {
+			e = new Entry(fetch(node, store), now + ttlMillis);
+			entries[store] = e;
+		}
+		if (e.filter == null || e.filter.mightContain(key)) {
+			return true;
+		}
+		if (!written.isEmpty()) {
+			Long until = written.get(store + "/" + key);
+			if (until != null && now <= until) {
+				return true;
+			}
+		}
+		negatives.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Drop the copies of one node, e.g. after storing a record on it
+	 * @param node: the node's routing address
+	 */
+	public void invalidate (InetSocketAddress node) {
+		nodes.remove(node);
+	}
+
+	/**
+	 * Remember a key written through the owner of the cache to nodes it
+	 * does not know, so the copies fetched before the write do not rule it
+	 * out while they are used
+	 * @param store: Record.DOMAIN or Record.IP
+	 * @param key
+	 */
+	public void wrote (int store, String key) {
+		long now = System.currentTimeMillis();
+		if (written.size() >= 1024) {
+			for (Map.Entry<String, Long> w : written.entrySet()) {
+				if (now > w.getValue()) {
+					written.remove(w.getKey(), w.getValue());
+				}
+			}
+		}
+		written.put(store + "/" + key, now + ttlMillis);
+	}
+
+	/**
+	 * Print-ready statistics
+	 * @return e.g. "filter cache: nodes=4, fetched=8, failed=0, negatives=90"
+	 */
+	public String summary () {
+		return "filter cache: nodes="+nodes.size()+", fetched="+fetched.get()+", failed="+failed.get()+", negatives="+negatives.get();
+	}
+
+	private BloomFilter fetch (Peer node, int store) {
+		Message response = Helper.sendRequest(Helper.dataAddress(node.getAddress()), new Message(Message.FILTER).withStore(store));
+		BloomFilter ret = response == null ? null : BloomFilter.fromBytes(response.getBytes());
+		if (ret == null) {
+			failed.incrementAndGet();
+		}
+		else {
+			fetched.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * A filter and when it expires, filter == null if it could not be
+	 * fetched (the node is down or still building it)
+	 */
+	private static class Entry {
+
+		private final BloomFilter filter;
+		private final long expires;
+
+		Entry (BloomFilter filter, long expires) {
+			this.filter = filter;
+			this.expires = expires;
+		}
+	}
+}
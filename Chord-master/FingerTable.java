@@ -0,0 +1,85 @@
+/**
+ * Finger table of one node, entries 1..size() (entry 1 is the successor),
+ * one per identifier bit.
+ * The entries live in a plain array that is never changed once published:
+ * every update copies it, changes the copy and publishes the copy through
+ * a volatile field. Readers (lookups, Talker workers) therefore read without
+ * locking or allocating and always see a consistent table, while writers
+ * are serialized among themselves only.
+ * @author Chuan Xia
+ *
+ */
+
+public class FingerTable {
+
+	private volatile Peer[] fingers;
+
+	public FingerTable () {
+		fingers = new Peer[size() + 1];
+	}
+
+	/**
+	 * Number of fingers, the identifier width (see Helper.setIdBits())
+	 * @return size
+	 */
+	public static int size () {
+		return Helper.getIdBits();
+	}
+
+	/**
+	 * Get ith finger
+	 * @param i: index in [1, size()]
+	 * @return finger, might be null
+	 */
+	public Peer get (int i) {
+		return fingers[i];
+	}
+
+	/**
+	 * Current table, index i holds the ith finger (index 0 is unused).
+	 * The array is shared and must not be modified.
+	 * @return snapshot of the table
+	 */
+	public Peer[] snapshot () {
+		return fingers;
+	}
+
+	/**
+	 * Set ith finger
+	 * @param i: index in [1, size()]
+	 * @param value: might be null
+	 */
+	public synchronized void set (int i, Peer value) {
+		Peer[] next = fingers.clone();
+		next[i] = value;
+		fingers = next;
+	}
+
+	/**
+	 * Set fingers from..to (inclusive) to the same value in one update
+	 * @param from
+	 * @param to
+	 * @param value: might be null
+	 */
+	public synchronized void fill (int from, int to, Peer value) {
+		Peer[] next = fingers.clone();
+		for (int i = from; i <= to; i++) {
+			next[i] = value;
+		}
+		fingers = next;
+	}
+
+	/**
+	 * Clear every finger equal to value in one update
+	 * @param value
+	 */
+	public synchronized void remove (Peer value) {
+		Peer[] next = fingers.clone();
+		for (int i = 1; i < next.length; i++) {
+			if (next[i] != null && next[i].equals(value)) {
+				next[i] = null;
+			}
+		}
+		fingers = next;
+	}
+}
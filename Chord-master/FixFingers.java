@@ -1,41 +1,44 @@
-import java.net.InetSocketAddress;
 import java.util.Random;
 
 /**
- * Fixfingers thread that periodically access a random entry in finger table 
- * and fix it.
+ * Fixfingers task that periodically access a random entry in finger table 
+ * of one ring and fix it. Each ring has its own task. Node runs one round
+ * every PERIOD milliseconds.
+ * Only entries starting past the successor are picked: the ones before
+ * would all be the successor, and with wide identifiers they are most of
+ * the table.
  * @author Chuan Xia
  *
  */
 
-public class FixFingers extends Thread{
+public class FixFingers implements Runnable {
+
+	// milliseconds between two rounds
+	public static final long PERIOD = 500;
 
 	private Node local;
+	private int ring;
 	Random random;
-	boolean alive;
 
-	public FixFingers (Node node) {
+	public FixFingers (Node node, int _ring) {
 		local = node;
-		alive = true;
+		ring = _ring;
 		random = new Random();
 	}
 
 	@Override
 	public void run() {
-		while (alive) {
-			int i = random.nextInt(31) + 2;
-			InetSocketAddress ithfinger = local.find_successor(Helper.ithStart(local.getId(), i), 0);
-			local.updateFingers(i, ithfinger);
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		int first = 2;
+		Peer successor = local.getSuccessor(ring);
+		if (successor != null && !successor.equals(local.getPeer())) {
+			long successor_relative_id = Helper.computeRelativeId(successor.getId(ring), local.getPeer().getId(ring));
+			while (first < FingerTable.size() && Helper.getPowerOfTwo(first - 1) <= successor_relative_id) {
+				first++;
 			}
 		}
+		int i = random.nextInt(FingerTable.size() - first + 1) + first;
+		// not a lookup of anyone's, keep it out of the lookup statistics
+		Peer ithfinger = local.find_successor(Helper.ithStart(local.getPeer().getId(ring), i), ring, false);
+		local.updateFingers(ring, i, ithfinger);
 	}
-
-	public void toDie() {
-		alive = false;
-	}
-
 }
@@ -0,0 +1,204 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Handoff class that moves records between nodes when membership changes.
+ * A joining node pulls the records in (predecessor, itself] from its
+ * successor in every ring, and a leaving node pushes the records in
+ * (predecessor, itself] to its successor in every ring.
+ *
+ * Records travel in chunks of at most CHUNK_RECORDS records or about
+ * CHUNK_BYTES bytes, one request per chunk, so a large handoff never keeps
+ * a worker busy for long and lookups keep being served in between. Chunks
+ * are requested in key order with the last key received as cursor: a
+ * chunk that fails is retried from that cursor, nothing already moved is
+ * sent again.
+ * @author Chuan Xia
+ *
+ */
+
+public class Handoff {
+
+	public static final int CHUNK_RECORDS = 512;
+	public static final int CHUNK_BYTES = 256 * 1024;
+
+	// attempts per chunk before a handoff gives up
+	private static final int RETRIES = 5;
+
+	private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return Segment.compare(a, b);
+		}
+	};
+
+	/**
+	 * Pull the records of one ring's range (from, to] from a node
+	 * @param local: node storing the records
+	 * @param source: node holding them
+	 * @param ring_nr
+	 * @param from
+	 * @param to
+	 * @return number of records pulled
+	 */
+	public static long pull (Node local, Peer source, int ring_nr, long from, long to) {
+		InetSocketAddress server = Helper.dataAddress(source.getAddress());
+		long n = 0;
+		for (int store = 0; store < Record.STORES; store++) {
+			String cursor = "";
+			while (cursor != null) {
+				Message request = new Message(Message.PULL, ring_nr).withFrom(from).withId(to).withStore(store).withKey(cursor);
+				Message chunk = send(server, request);
+				if (chunk == null || chunk.getOpcode() != Message.CHUNK) {
+					System.out.println("Handoff from "+source+" in ring "+ring_nr+" stopped after "+n+" records.");
+					return n;
+				}
+				for (Record r : chunk.getRecords()) {
+					local.storeRecord(r);
+				}
+				n += chunk.getRecords().size();
+				cursor = chunk.getKey();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Push the records of one ring's range (from, to] to a node
+	 * @param local: node holding the records
+	 * @param target: node taking them over
+	 * @param ring_nr
+	 * @param from
+	 * @param to
+	 * @return number of records pushed
+	 */
+	public static long push (Node local, Peer target, int ring_nr, long from, long to) {
+		InetSocketAddress server = Helper.dataAddress(target.getAddress());
+		long n = 0;
+		for (int store = 0; store < Record.STORES; store++) {
+			byte[][] keys = local.keysInRange(store, ring_nr, from, to);
+			int i = 0;
+			while (i < keys.length) {
+				ArrayList<Record> records = new ArrayList<Record>();
+				i = collect(local.getStore(store), store, keys, i, records);
+				Message response = send(server, new Message(Message.PUSH, ring_nr).withRecords(records));
+				if (response == null || response.getOpcode() != Message.STORED) {
+					System.out.println("Handoff to "+target+" in ring "+ring_nr+" stopped after "+n+" records.");
+					return n;
+				}
+				n += records.size();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Answer a PULL: the chunk of records after the request's cursor
+	 * @param request
+	 * @param keys: keys in the requested range, sorted, see sortedKeys()
+	 * @param store: store holding them
+	 * @return CHUNK response, its key is the cursor of the next chunk (none after the last one)
+	 */
+	public static Message nextChunk (Message request, byte[][] keys, RecordStore store) {
+		byte[] cursor = request.getKey() == null ? new byte[0] : request.getKey().getBytes(StandardCharsets.UTF_8);
+
+		// first key after the cursor
+		int i = Arrays.binarySearch(keys, cursor, KEY_ORDER);
+		i = i >= 0 ? i + 1 : -i - 1;
+		if (cursor.length == 0) {
+			i = 0;
+		}
+
+		ArrayList<Record> records = new ArrayList<Record>();
+		int next = collect(store, request.getStore(), keys, i, records);
+		Message ret = request.reply(Message.CHUNK).withRecords(records);
+		if (next < keys.length) {
+			ret.withKey(new String(keys[next - 1], StandardCharsets.UTF_8));
+		}
+		return ret;
+	}
+
+	/**
+	 * Keys of a store whose identifier in a ring lies in (from, to],
+	 * sorted and without duplicates
+	 * @param store
+	 * @param ring_nr
+	 * @param from
+	 * @param to
+	 * @return keys
+	 */
+	public static byte[][] sortedKeys (RecordStore store, final int ring_nr, final long from, final long to) {
+		final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		store.forEach(new RecordStore.Visitor() {
+			public void visit(byte[] key, byte[] value) {
+				if (inRange(Helper.hashBytes(key, ring_nr), from, to)) {
+					keys.add(key);
+				}
+			}
+		});
+		byte[][] sorted = keys.toArray(new byte[keys.size()][]);
+		Arrays.sort(sorted, KEY_ORDER);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || Segment.compare(sorted[n - 1], sorted[i]) != 0) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * Check if an identifier lies in the range (from, to] of a ring,
+	 * from == to meaning the whole ring
+	 * @param id
+	 * @param from
+	 * @param to
+	 * @return true if it does
+	 */
+	public static boolean inRange (long id, long from, long to) {
+		if (from == to) {
+			return true;
+		}
+		long relative_id = Helper.computeRelativeId(id, from);
+		return relative_id > 0 && relative_id <= Helper.computeRelativeId(to, from);
+	}
+
+	/**
+	 * Add the records of keys[i..] to records until a chunk is full
+	 * @return index of the first key not added
+	 */
+	private static int collect (RecordStore store, int storeIndex, byte[][] keys, int i, List<Record> records) {
+		int bytes = 0;
+		for (; i < keys.length && records.size() < CHUNK_RECORDS && bytes < CHUNK_BYTES; i++) {
+			byte[] value = store.getBytes(keys[i]);
+			if (value != null) {
+				records.add(new Record(storeIndex, new String(keys[i], StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)));
+				bytes += keys[i].length + value.length;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Send one chunk request, retrying with a growing pause
+	 * @return response, null if every attempt failed
+	 */
+	private static Message send (InetSocketAddress server, Message request) {
+		for (int attempt = 1; attempt <= RETRIES; attempt++) {
+			Message response = Helper.sendRequest(server, request);
+			if (response != null) {
+				return response;
+			}
+			try {
+				Thread.sleep(500L * attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+}
@@ -1,27 +1,20 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
 
 /**
  * A helper method that does the following things:
- * (1) Hashing - for string, for socket address, and integer number
+ * (1) Hashing - for string, for UTF-8 key bytes and for socket address (see KeyHash)
  * (2) Computation - relative id (one node is how far behind another node), 
  * a address' hex string and its percentage position in the ring (so we can
- * easily draw the picture of ring!), address' 8-digit hex string, the ith 
+ * easily draw the picture of ring!), an identifier's hex string, the ith 
  * start of a node's finger table, power of two (to avoid computation of power
  * of 2 everytime we need it)
  * (3) Network and address services - send request to a node to get desired
- * socket address/response, create socket address object using string, read 
- * string from an input stream.
+ * socket address/response, create socket address object using string.
  * @author Chuan Xia
  *
  */
@@ -30,6 +23,32 @@ public class Helper {
 
 	private static HashMap<Integer, Long> powerOfTwo = null;
 
+	// default time sendRequest() waits for a response, in milliseconds
+	public static final int DEFAULT_READ_TIMEOUT = 2000;
+	private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private static final LatencyRecorder rpcLatency = new LatencyRecorder("rpc", 4096);
+	private static volatile Transport transport = new ConnectionPool();
+
+	// number of rings every node and identifier takes part in
+	public static final int DEFAULT_RINGS = 2;
+	// ring numbers travel in one signed byte, -1 meaning "any ring"
+	public static final int MAX_RINGS = 127;
+	private static int numRings = DEFAULT_RINGS;
+
+	// number of successors every record is copied to in each ring
+	public static final int DEFAULT_REPLICAS = 2;
+	// successor lists travel with a one-byte length
+	public static final int MAX_REPLICAS = 16;
+	private static int replicas = DEFAULT_REPLICAS;
+
+	// bits of every identifier, the ring has 2^bits positions; identifiers
+	// are unsigned values in a long, so at most 63 bits
+	public static final int DEFAULT_ID_BITS = 32;
+	public static final int MIN_ID_BITS = 8;
+	public static final int MAX_ID_BITS = 63;
+	private static int idBits = DEFAULT_ID_BITS;
+	private static long idMask = (1L << DEFAULT_ID_BITS) - 1;
+
 	/**
 	 * Constructor
 	 */
@@ -37,97 +56,118 @@ public class Helper {
 		//initialize power of two table
 		powerOfTwo = new HashMap<Integer, Long>();
 		long base = 1;
-		for (int i = 0; i <= 32; i++) {
+		for (int i = 0; i < MAX_ID_BITS; i++) {
 			powerOfTwo.put(i, base);
 			base *= 2;
 		}
 	}
 
 	/**
-	 * Compute a socket address' 32 bit identifier
+	 * Set the number of rings, must be the same on every node and client
+	 * @param rings: in [1, MAX_RINGS]
+	 */
+	public static void setNumRings (int rings) {
+		if (rings < 1 || rings > MAX_RINGS) {
+			throw new IllegalArgumentException("Number of rings must be in [1, " + MAX_RINGS + "]");
+		}
+		numRings = rings;
+	}
+
+	public static int getNumRings () {
+		return numRings;
+	}
+
+	/**
+	 * Set the replication factor: a node copies the records it is
+	 * responsible for in a ring to that many of its successors
+	 * @param r: in [0, MAX_REPLICAS]
+	 */
+	public static void setReplicas (int r) {
+		if (r < 0 || r > MAX_REPLICAS) {
+			throw new IllegalArgumentException("Number of replicas must be in [0, " + MAX_REPLICAS + "]");
+		}
+		replicas = r;
+	}
+
+	public static int getReplicas () {
+		return replicas;
+	}
+
+	/**
+	 * Set the width of identifiers, must be the same on every node and
+	 * client; finger tables have one entry per bit
+	 * @param bits: in [MIN_ID_BITS, MAX_ID_BITS]
+	 */
+	public static void setIdBits (int bits) {
+		if (bits < MIN_ID_BITS || bits > MAX_ID_BITS) {
+			throw new IllegalArgumentException("Identifier bits must be in [" + MIN_ID_BITS + ", " + MAX_ID_BITS + "]");
+		}
+		idBits = bits;
+		idMask = (1L << bits) - 1;
+	}
+
+	public static int getIdBits () {
+		return idBits;
+	}
+
+	/**
+	 * A random identifier, uniform over the ring
+	 * @param random
+	 * @return identifier
+	 */
+	public static long randomId (Random random) {
+		return random.nextLong() & idMask;
+	}
+
+	/**
+	 * Compute a socket address' identifier
 	 * @param addr: socket address
 	 * @param ring_nr: the ring, in which the hash should be performed
-	 * @return 32-bit identifier in long type
+	 * @return identifier of getIdBits() bits in long type
 	 */
 	public static long hashSocketAddress (InetSocketAddress addr, int ring_nr) {
-		int i = addr.hashCode();
-		if (ring_nr == 1) {
-			return (hashHashCode(i) + Helper.getPowerOfTwo(31)) % Helper.getPowerOfTwo(32);
-		}
-		return hashHashCode(i);
+		return KeyHash.hash(addr, ring_nr) >>> (64 - idBits);
 	}
 
 	/**
-	 * Compute a string's 32 bit identifier
+	 * Compute the identifier of a virtual node of the node at a socket address
+	 * @param addr: socket address
+	 * @param vnode: virtual node number, 0 for the node itself
+	 * @param ring_nr: the ring, in which the hash should be performed
+	 * @return identifier of getIdBits() bits in long type
+	 */
+	public static long hashSocketAddress (InetSocketAddress addr, int vnode, int ring_nr) {
+		return KeyHash.hash(addr, vnode, ring_nr) >>> (64 - idBits);
+	}
+
+	/**
+	 * Compute a string's identifier in ring 0
 	 * @param s: string
-	 * @return 32-bit identifier in long type
+	 * @return identifier of getIdBits() bits in long type
 	 */
 	public static long hashString (String s) {
-		int i = s.hashCode();
-		return hashHashCode(i);
+		return hashString(s, 0);
 	}
 
 	/**
-	 * Compute a string's 32 bit identifier
+	 * Compute a string's identifier from all of its UTF-8 bytes, with the
+	 * ring's algorithm (see KeyHash)
 	 * @param s: string
-	 * @param ring_nr: the ring number, in which the hash should be performed
-	 * @return 32-bit identifier in long type
+	 * @param ring_nr: the ring, in which the hash should be performed
+	 * @return identifier of getIdBits() bits in long type
 	 */
 	public static long hashString (String s, int ring_nr) {
-		int i = s.hashCode();
-		if (ring_nr == 1) {
-			return (hashHashCode(i) + Helper.getPowerOfTwo(31)) % Helper.getPowerOfTwo(32);
-		}
-		return hashHashCode(i);
+		return KeyHash.hash(s, ring_nr) >>> (64 - idBits);
 	}
 
 	/**
-	 * Compute a 32 bit integer's identifier
-	 * @param i: integer
-	 * @return 32-bit identifier in long type
+	 * Compute the identifier of a key already encoded as UTF-8
+	 * @param key
+	 * @param ring_nr
+	 * @return the same identifier as hashString() of the key
 	 */
-	private static long hashHashCode (int i) {
-
-		//32 bit regular hash code -> byte[4]
-		byte[] hashbytes = new byte[4];
-		hashbytes[0] = (byte) (i >> 24);
-		hashbytes[1] = (byte) (i >> 16);
-		hashbytes[2] = (byte) (i >> 8);
-		hashbytes[3] = (byte) (i /*>> 0*/);
-
-		// try to create SHA1 digest
-		MessageDigest md =  null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		// successfully created SHA1 digest
-		// try to convert byte[4] 
-		// -> SHA1 result byte[]
-		// -> compressed result byte[4] 
-		// -> compressed result in long type
-		if (md != null) {
-			md.reset();
-			md.update(hashbytes);
-			byte[] result = md.digest();
-
-			byte[] compressed = new byte[4];
-			for (int j = 0; j < 4; j++) {
-				byte temp = result[j];
-				for (int k = 1; k < 5; k++) {
-					temp = (byte) (temp ^ result[j+k]);
-				}
-				compressed[j] = temp;
-			}
-
-			long ret =  (compressed[0] & 0xFF) << 24 | (compressed[1] & 0xFF) << 16 | (compressed[2] & 0xFF) << 8 | (compressed[3] & 0xFF);
-			ret = ret&(long)0xFFFFFFFFl;
-			return ret;
-		}
-		return 0;
+	public static long hashBytes (byte[] key, int ring_nr) {
+		return KeyHash.hash(key, ring_nr) >>> (64 - idBits);
 	}
 
 	/**
@@ -138,34 +178,36 @@ public class Helper {
 	 * @return relative identifier
 	 */
 	public static long computeRelativeId (long universal, long local) {
-		long ret = universal - local;
-		if (ret < 0) {
-			ret += powerOfTwo.get(32);
-		}
-		return ret;
+		return (universal - local) & idMask;
 	}
 
 	/**
-	 * Compute a socket address' SHA-1 hash in hex 
-	 * and its approximate position in string
-	 * @param addr
-	 * @return 
+	 * A peer's identifiers in hex and their approximate 
+	 * positions in every ring
+	 * @param peer
+	 * @return
 	 */
-	public static String hexIdAndPosition (InetSocketAddress addr) {
-		long hash0 = hashSocketAddress(addr, 0);
-		long hash1 = hashSocketAddress(addr, 1);
-		return ("in RING1: " + longTo8DigitHex(hash0)+" ("+hash0*100/Helper.getPowerOfTwo(32)+"%)"
-			+ " and in RING2: " + longTo8DigitHex(hash1)+" ("+hash1*100/Helper.getPowerOfTwo(32)+"%)");
+	public static String hexIdAndPosition (Peer peer) {
+		StringBuilder sb = new StringBuilder();
+		for (int r = 0; r < numRings; r++) {
+			long hash = peer.getId(r);
+			if (r > 0) {
+				sb.append(" and ");
+			}
+			sb.append("in RING"+(r+1)+": " + idToHex(hash)+" ("+(int) (hash*100.0/(idMask+1.0))+"%)");
+		}
+		return sb.toString();
 	}
 
 	/**
-	 * Generate a long type number's 8-digit hex string
+	 * Generate an identifier's hex string, with as many digits as the
+	 * widest identifier has (8 for 32 bits)
 	 * @param l
 	 * @return
 	 */
-	public static String longTo8DigitHex (long l) {
+	public static String idToHex (long l) {
 		String hex = Long.toHexString(l);
-		int lack = 8-hex.length();
+		int lack = (idBits+3)/4-hex.length();
 		StringBuilder sb = new StringBuilder(); 
 			for (int i = lack; i > 0; i--) {
 				sb.append("0");
@@ -181,7 +223,7 @@ public class Helper {
 	 * @return finger[i].start's identifier
 	 */
 	public static long ithStart (long nodeid, int i) {
-		return (nodeid + powerOfTwo.get(i-1)) % powerOfTwo.get(32);
+		return (nodeid + powerOfTwo.get(i-1)) & idMask;
 	}
 
 	/**
@@ -194,114 +236,180 @@ public class Helper {
 	}
 
 	/**
-	 * Generate requested address by sending request to server. As no ring is specified, the method will look
+	 * Generate requested peer by sending request to server. As no ring is specified, the method will look
 	 * for the closest server in all rings (indicated by ring_nr = -1)
 	 * @param server
-	 * @param req: request
-	 * @return generated socket address,
+	 * @param opcode: request, see Message
+	 * @return generated peer,
 	 * might be null if
 	 * (1) invalid input
 	 * (2) response is null (typically cannot send request)
-	 * (3) fail to create address from reponse
 	 */
-	public static InetSocketAddress requestAddress (InetSocketAddress server, String req) {
+	public static Peer requestPeer (Peer server, byte opcode) {
 		int ring_nr = -1;
-		return requestAddress(server, req, ring_nr);
+		return requestPeer(server, opcode, ring_nr);
 	}
 
 	/**
-	 * Generate requested address in a specific ring by sending request to server
+	 * Generate requested peer in a specific ring by sending request to server
 	 * @param server
-	 * @param req: request
-	 * @param ring_nr: the specified ring in which the address should be searched
-	 * @return generated socket address, 
+	 * @param opcode: request, see Message
+	 * @param ring_nr: the specified ring in which the peer should be searched
+	 * @return generated peer, 
 	 * might be null if 
 	 * (1) invalid input
 	 * (2) response is null (typically cannot send request)
-	 * (3) fail to create address from reponse
 	 */
-	public static InetSocketAddress requestAddress (InetSocketAddress server, String req, int ring_nr) {
+	public static Peer requestPeer (Peer server, byte opcode, int ring_nr) {
+		return requestPeer(server, new Message(opcode, ring_nr));
+	}
 
-		// invalid input, return null
-		if (server == null || req == null) {
+	/**
+	 * Generate requested peer by sending request to server
+	 * @param server
+	 * @param req: request, carrying its ring number and id if any
+	 * @return generated peer, server itself if server found nothing,
+	 * might be null if 
+	 * (1) invalid input
+	 * (2) response is null (typically cannot send request)
+	 * (3) response carries no peer
+	 */
+	public static Peer requestPeer (Peer server, Message req) {
+		if (server == null) {
 			return null;
 		}
+		Message response = sendRequest(server, req);
+		if (response != null && response.getOpcode() == Message.NOTHING) {
+			return server;
+		}
+		return response == null ? null : response.getPeer();
+	}
 
-        //append ring number to request string
-        req = req + "_"+ring_nr;
+	/**
+	 * Generate requested peer by sending request to a server known
+	 * only by its address (e.g. the contact node given on the command line)
+	 * @param server
+	 * @param req
+	 * @return generated peer, see requestPeer(Peer, Message)
+	 */
+	public static Peer requestPeer (InetSocketAddress server, Message req) {
+		return requestPeer(Peer.of(server), req);
+	}
 
-		// send request to server
-		String response = sendRequest(server, req);
+	/**
+	 * Ask a node for its successor list in a ring
+	 * @param server
+	 * @param ring_nr
+	 * @return successors, nearest first, null if the node cannot be reached
+	 */
+	public static List<Peer> requestSuccessors (Peer server, int ring_nr) {
+		Message response = sendRequest(server, new Message(Message.SUCCLIST, ring_nr));
+		return response == null ? null : response.getPeers();
+	}
 
-		// if response is null, return null
-		if (response == null) {
-			return null;
-		}
+	/**
+	 * Set how long sendRequest() blocks waiting for a response
+	 * @param millis: read timeout in milliseconds, 0 means wait forever
+	 */
+	public static void setReadTimeout (int millis) {
+		readTimeout = millis;
+	}
 
-		// or server cannot find anything, return server itself 
-		else if (response.startsWith("NOTHING"))
-			return server;
+	public static int getReadTimeout () {
+		return readTimeout;
+	}
 
-		// server find something, 
-		// using response to create, might fail then and return null
-		else {
-			InetSocketAddress ret = Helper.createSocketAddress(response.split("_")[1]);
-			return ret;
-		}
+	/**
+	 * Latency of every request sent by sendRequest()
+	 * @return recorder
+	 */
+	public static LatencyRecorder getRpcLatency () {
+		return rpcLatency;
+	}
+
+	/**
+	 * Transport used by sendRequest(), a pool of connections with one per
+	 * peer unless setTransport() was called
+	 * @return transport
+	 */
+	public static Transport getTransport () {
+		return transport;
+	}
+
+	/**
+	 * Send requests and serve the nodes created after this call over
+	 * another transport, e.g. a SimNetwork
+	 * @param t
+	 */
+	public static void setTransport (Transport t) {
+		transport = t;
 	}
 
 	/**
-	 * Send request to server and read response
+	 * Send request to server over its pooled connection and block until 
+	 * its response arrives (or the read timeout expires)
 	 * @param server
 	 * @param req
 	 * @return response, might be null if
 	 * (1) invalid input
-	 * (2) cannot open socket or write request to it
-	 * (3) response read by inputStreamToString() is null
+	 * (2) cannot connect to server or write request to it
+	 * (3) no response within the read timeout
+	 * (4) server has no response for this request
 	 */
-	public static String sendRequest(InetSocketAddress server, String req) {
+	public static Message sendRequest(InetSocketAddress server, Message req) {
 
 		// invalid input
 		if (server == null || req == null)
 			return null;
 
-		Socket talkSocket = null;
+		long start = System.nanoTime();
+		Message response = transport.request(server, req, readTimeout);
+		rpcLatency.record(System.nanoTime() - start);
+		return response;
+	}
 
-		// try to open talkSocket, output request to this socket
-		// return null if fail to do so
-		try {
-			talkSocket = new Socket(server.getAddress(),server.getPort());
-			PrintStream output = new PrintStream(talkSocket.getOutputStream());
-			output.println(req);
-		} catch (IOException e) {
-			//System.out.println("\nCannot send request to "+server.toString()+"\nRequest is: "+req+"\n");
+	/**
+	 * Send a routing request to a peer, addressed to the peer's virtual
+	 * node on its host
+	 * @param server
+	 * @param req
+	 * @return response, see sendRequest(InetSocketAddress, Message)
+	 */
+	public static Message sendRequest(Peer server, Message req) {
+		if (server == null || req == null) {
 			return null;
 		}
+		return sendRequest(server.getAddress(), req.withVnode(server.getVnode()));
+	}
 
-		// sleep for a short time, waiting for response
-		try {
-			Thread.sleep(60);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Check if server is alive by sending KEEP, evict its pooled 
+	 * connection if it is not
+	 * @param server
+	 * @return true if server answers ALIVE
+	 */
+	public static boolean keepAlive (Peer server) {
+		return server != null && keepAlive(server.getAddress());
+	}
 
-		// get input stream, try to read something from it
-		InputStream input = null;
-		try {
-			input = talkSocket.getInputStream();
-		} catch (IOException e) {
-			System.out.println("Cannot get input stream from "+server.toString()+"\nRequest is: "+req+"\n");
+	public static boolean keepAlive (InetSocketAddress server) {
+		Message response = sendRequest(server, new Message(Message.KEEP));
+		if (response != null && response.getOpcode() == Message.ALIVE) {
+			return true;
 		}
-		String response = Helper.inputStreamToString(input);
-
-		// try to close socket
-		try {
-			talkSocket.close();
-		} catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot close socket", e);
+		if (server != null) {
+			transport.evict(server);
 		}
-		return response;
+		return false;
+	}
+
+	/**
+	 * Address of a node's data port
+	 * @param node: node's (routing) address
+	 * @return data port address
+	 */
+	public static InetSocketAddress dataAddress (InetSocketAddress node) {
+		return new InetSocketAddress(node.getAddress(), node.getPort() + Listener.DATA_PORT_OFFSET);
 	}
 
 	/**
@@ -356,33 +464,4 @@ public class Helper {
 
 	}
 
-	/**
-	 * Read one line from input stream
-	 * @param in: input steam
-	 * @return line, might be null if:
-	 * (1) invalid input
-	 * (2) cannot read from input stream
-	 */
-	public static String inputStreamToString (InputStream in) {
-
-		// invalid input
-		if (in == null) {
-			return null;
-		}
-
-		// try to read line from input stream
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-		String line = null;
-		try {
-			line = reader.readLine();
-		} catch (IOException e) {
-			System.out.println("Cannot read line from input stream.");
-			return null;
-		}
-
-		return line;
-	}
-
-
-
 }
@@ -0,0 +1,308 @@
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hashing engine that places keys and nodes in the rings. A key is hashed
+ * over all of its UTF-8 bytes and a node over its IP address bytes and
+ * port (and the number of a virtual node), into a 64-bit long; Helper
+ * takes the identifier bits from it.
+ * Nothing is allocated per call: every thread keeps its own digest and
+ * buffers. In virtual thread mode, where every request runs on a new
+ * thread, they are borrowed from a small pool instead (see acquire()).
+ *
+ * Each ring uses one of two algorithms, the same on every node and client
+ * (see setAlgorithm()):
+ * SHA1  SHA-1 of the bytes, salted per ring except in ring 0; its first
+ *       8 bytes are the hash
+ * FAST  64-bit MurmurHash2 (MurmurHash64A) seeded per ring, several
+ *       times faster and spread as evenly, but not cryptographic
+ * @author Chuan Xia
+ *
+ */
+
+public class KeyHash {
+
+	public static final String SHA1 = "sha1";
+	public static final String FAST = "fast";
+
+	private static final long M = 0xc6a4a7935bd1e995L;
+	private static final int R = 47;
+
+	// true for the rings using FAST, index = ring number
+	private static final boolean[] fast = new boolean[Helper.MAX_RINGS];
+
+	// salt of every ring's SHA-1, null for ring 0
+	private static final byte[][] salts = new byte[Helper.MAX_RINGS][];
+
+	static {
+		for (int r = 1; r < Helper.MAX_RINGS; r++) {
+			salts[r] = new byte[] {'r', 'i', 'n', 'g', (byte) r};
+		}
+	}
+
+	private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+		protected State initialValue() {
+			return new State(false);
+		}
+	};
+
+	// states lent to virtual threads, a slot is null while its state is lent
+	private static final int POOL_SIZE = 64;
+	private static final int PROBES = 4;
+	private static final AtomicReferenceArray<State> pool = new AtomicReferenceArray<State>(POOL_SIZE);
+
+	/**
+	 * Select the algorithm of a ring, must be the same on every node and client
+	 * @param ring_nr
+	 * @param algorithm: SHA1 or FAST
+	 * @return false if the algorithm is not known
+	 */
+	public static boolean setAlgorithm (int ring_nr, String algorithm) {
+		if (SHA1.equals(algorithm) || FAST.equals(algorithm)) {
+			fast[ring_nr] = FAST.equals(algorithm);
+			return true;
+		}
+		return false;
+	}
+
+	public static String getAlgorithm (int ring_nr) {
+		return fast[ring_nr] ? FAST : SHA1;
+	}
+
+	/**
+	 * Hash a key
+	 * @param key
+	 * @param ring_nr
+	 * @return 64-bit hash
+	 */
+	public static long hash (String key, int ring_nr) {
+		State s = acquire();
+		try {
+			int n = s.encode(key);
+			return hash(s, s.input, 0, n, ring_nr);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Hash a key already encoded as UTF-8
+	 * @param key
+	 * @param ring_nr
+	 * @return 64-bit hash, the same as hash(String, ring_nr) of the key
+	 */
+	public static long hash (byte[] key, int ring_nr) {
+		State s = acquire();
+		try {
+			return hash(s, key, 0, key.length, ring_nr);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Hash a node's address: its IP address bytes, then its port
+	 * @param addr
+	 * @param ring_nr
+	 * @return 64-bit hash
+	 */
+	public static long hash (InetSocketAddress addr, int ring_nr) {
+		return hash(addr, 0, ring_nr);
+	}
+
+	/**
+	 * Hash a virtual node of a node: the node's address, then the virtual
+	 * node's number unless it is 0
+	 * @param addr
+	 * @param vnode
+	 * @param ring_nr
+	 * @return 64-bit hash, the same as hash(addr, ring_nr) for vnode 0
+	 */
+	public static long hash (InetSocketAddress addr, int vnode, int ring_nr) {
+		State s = acquire();
+		try {
+			return hash(s, addr, vnode, ring_nr);
+		} finally {
+			release(s);
+		}
+	}
+
+	private static long hash (State s, InetSocketAddress addr, int vnode, int ring_nr) {
+		int n;
+		if (addr.getAddress() instanceof Inet4Address) {
+			// an IPv4 address' hashCode is its address, no array copy needed
+			int ip = addr.getAddress().hashCode();
+			s.input[0] = (byte) (ip >>> 24);
+			s.input[1] = (byte) (ip >>> 16);
+			s.input[2] = (byte) (ip >>> 8);
+			s.input[3] = (byte) ip;
+			n = 4;
+		}
+		else if (addr.getAddress() != null) {
+			byte[] ip = addr.getAddress().getAddress();
+			System.arraycopy(ip, 0, s.input, 0, ip.length);
+			n = ip.length;
+		}
+		else {
+			n = s.encode(addr.getHostString());
+		}
+		s.input[n++] = (byte) (addr.getPort() >>> 8);
+		s.input[n++] = (byte) addr.getPort();
+		if (vnode != 0) {
+			s.input[n++] = (byte) vnode;
+		}
+		return hash(s, s.input, 0, n, ring_nr);
+	}
+
+	private static long hash (State s, byte[] bytes, int off, int len, int ring_nr) {
+		if (fast[ring_nr]) {
+			return murmur(bytes, off, len, 0x9E3779B97F4A7C15L * (ring_nr + 1));
+		}
+		MessageDigest md = s.sha1;
+		md.reset();
+		if (salts[ring_nr] != null) {
+			md.update(salts[ring_nr]);
+		}
+		md.update(bytes, off, len);
+		try {
+			md.digest(s.digest, 0, s.digest.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		long ret = 0;
+		for (int i = 0; i < 8; i++) {
+			ret = ret << 8 | (s.digest[i] & 0xFF);
+		}
+		return ret;
+	}
+
+	/**
+	 * The calling thread's state. A virtual thread lives for one request,
+	 * so a thread local would build a new digest on nearly every call:
+	 * in virtual thread mode a state is borrowed from the pool, a few
+	 * slots from one picked by thread id, or made if they are all lent
+	 * @return state, to be given back with release()
+	 */
+	private static State acquire () {
+		if (!Threads.isVirtual()) {
+			return state.get();
+		}
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < PROBES; i++) {
+			State s = pool.getAndSet((start + i) & (POOL_SIZE - 1), null);
+			if (s != null) {
+				return s;
+			}
+		}
+		return new State(true);
+	}
+
+	/**
+	 * Give a state from acquire() back, dropped if its slots are all taken
+	 */
+	private static void release (State s) {
+		if (!s.pooled) {
+			return;
+		}
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < PROBES; i++) {
+			if (pool.compareAndSet((start + i) & (POOL_SIZE - 1), null, s)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * MurmurHash64A of bytes[off, off + len)
+	 */
+	private static long murmur (byte[] bytes, int off, int len, long seed) {
+		long h = seed ^ (len * M);
+		int end = off + (len & ~7);
+		for (int i = off; i < end; i += 8) {
+			long k = (bytes[i] & 0xFFL) | (bytes[i + 1] & 0xFFL) << 8 | (bytes[i + 2] & 0xFFL) << 16 | (bytes[i + 3] & 0xFFL) << 24
+					| (bytes[i + 4] & 0xFFL) << 32 | (bytes[i + 5] & 0xFFL) << 40 | (bytes[i + 6] & 0xFFL) << 48 | (bytes[i + 7] & 0xFFL) << 56;
+			k *= M;
+			k ^= k >>> R;
+			k *= M;
+			h ^= k;
+			h *= M;
+		}
+		int tail = len & 7;
+		if (tail > 0) {
+			for (int i = tail - 1; i >= 0; i--) {
+				h ^= (bytes[end + i] & 0xFFL) << (8 * i);
+			}
+			h *= M;
+		}
+		h ^= h >>> R;
+		h *= M;
+		h ^= h >>> R;
+		return h;
+	}
+
+	/**
+	 * One thread's digest and buffers
+	 */
+	private static class State {
+
+		private final MessageDigest sha1;
+		private final byte[] digest = new byte[20];
+		private byte[] input = new byte[256];
+
+		// true if lent from the pool rather than kept by one thread
+		private final boolean pooled;
+
+		State (boolean pooled) {
+			this.pooled = pooled;
+			try {
+				sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is not available", e);
+			}
+		}
+
+		/**
+		 * Encode a string as UTF-8 into input, like String.getBytes(UTF_8)
+		 * (an unpaired surrogate becomes '?')
+		 * @return number of bytes
+		 */
+		int encode (String s) {
+			int length = s.length();
+			if (input.length < 3 * length + 18) {
+				input = new byte[3 * length + 18];
+			}
+			byte[] b = input;
+			int n = 0;
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					b[n++] = (byte) c;
+				}
+				else if (c < 0x800) {
+					b[n++] = (byte) (0xC0 | c >> 6);
+					b[n++] = (byte) (0x80 | c & 0x3F);
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[n++] = (byte) (0xF0 | cp >> 18);
+					b[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+					b[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+					b[n++] = (byte) (0x80 | cp & 0x3F);
+				}
+				else if (Character.isSurrogate(c)) {
+					b[n++] = '?';
+				}
+				else {
+					b[n++] = (byte) (0xE0 | c >> 12);
+					b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+					b[n++] = (byte) (0x80 | c & 0x3F);
+				}
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+/**
+ * Latency recorder that keeps the most recent samples of an operation
+ * (e.g. one RPC or one lookup) in a fixed-size window, so percentiles
+ * can be reported without keeping every sample forever.
+ * @author Chuan Xia
+ *
+ */
+
+public class LatencyRecorder {
+
+	private final String name;
+	private final long[] samples;
+	private int next;
+	private long count;
+	private long totalNanos;
+
+	/**
+	 * Constructor
+	 * @param name: operation name used when printing
+	 * @param window: number of most recent samples to keep
+	 */
+	public LatencyRecorder (String name, int window) {
+		this.name = name;
+		this.samples = new long[window];
+		this.next = 0;
+		this.count = 0;
+		this.totalNanos = 0;
+	}
+
+	/**
+	 * Record one sample
+	 * @param nanos: elapsed time in nanoseconds
+	 */
+	public synchronized void record (long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		count++;
+		totalNanos += nanos;
+	}
+
+	/**
+	 * Total number of samples recorded so far
+	 * @return count
+	 */
+	public synchronized long getCount () {
+		return count;
+	}
+
+	/**
+	 * Compute a percentile over the current window
+	 * @param p: percentile in [0, 100]
+	 * @return latency in nanoseconds, 0 if nothing recorded
+	 */
+	public synchronized long percentile (double p) {
+		int size = (int) Math.min(count, samples.length);
+		if (size == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(p / 100.0 * size) - 1;
+		if (index < 0) {
+			index = 0;
+		}
+		return sorted[index];
+	}
+
+	/**
+	 * Summary line, e.g. "rpc: n=120 avg=0.41ms p50=0.35ms p90=0.62ms p99=1.80ms"
+	 * @return summary string
+	 */
+	public String summary () {
+		long n;
+		long total;
+		synchronized (this) {
+			n = count;
+			total = totalNanos;
+		}
+		if (n == 0) {
+			return name + ": no samples";
+		}
+		return name + ": n=" + n
+				+ " avg=" + toMillis(total / n)
+				+ " p50=" + toMillis(percentile(50))
+				+ " p90=" + toMillis(percentile(90))
+				+ " p99=" + toMillis(percentile(99));
+	}
+
+	private static String toMillis (long nanos) {
+		return String.format("%.2fms", nanos / 1e6);
+	}
+}
@@ -1,52 +1,389 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Listener thread that keeps listening to a port and asks talker thread to process
- * when a request is accepted.
+ * Listener thread that watches both of this node's ports with one selector:
+ * the routing port (requests for Talker) and the data port, port + 2000
+ * (requests for the node's data servant). Accepting, reading and writing
+ * never block; every request decoded by Codec is handed to a bounded 
+ * worker pool.
+ * Requests that make RPCs of their own (FINDSUCC, and PUT and RESOLVE on
+ * the data port) must not hold up the requests other nodes' workers wait
+ * for, or two busy nodes could each fill the other's pool: requests Talker
+ * answers from local state are answered on the listener thread, CLOSEST,
+ * which only pings fingers, runs on a pool of its own, and so do the data
+ * requests answered from the node's own records (PUTD, GETD, PUSH, FILTER,
+ * ...).
+ * When the pool's queue is full the listener stops reading from the
+ * connection (and stops accepting new ones) until there is room again,
+ * so a burst of requests is pushed back onto the senders' TCP windows
+ * instead of piling up as threads.
  * @author Chuan Xia
  *
  */
 
-public class Listener extends Thread {
+public class Listener extends Thread implements Transport.Server {
+
+	// offset of the data port from the routing port
+	public static final int DATA_PORT_OFFSET = 2000;
+
+	// worker pool defaults, see setWorkers()
+	private static int workerCount = Runtime.getRuntime().availableProcessors() * 4;
+	private static int queueCapacity = 1024;
 
 	private Node local;
-	private ServerSocket serverSocket;
-	private boolean alive;
+	private Selector selector;
+	private ServerSocketChannel routingChannel;
+	private ServerSocketChannel dataChannel;
+	private Executor workers;
+	private Executor closest;
+	private Executor records;
+	private volatile boolean alive;
+
+	// connections with replies to write, filled by workers
+	private final ConcurrentLinkedQueue<Connection> writable;
+
+	// connections waiting for room in the worker queue
+	private final ArrayList<Connection> stalled;
+	private final AtomicLong stalls;
 
 	public Listener (Node n) {
 		local = n;
 		alive = true;
+		writable = new ConcurrentLinkedQueue<Connection>();
+		stalled = new ArrayList<Connection>();
+		stalls = new AtomicLong();
 		InetSocketAddress localAddress = local.getAddress();
 		int port = localAddress.getPort();
 
-		//open server/listener socket
+		//open server/listener channels
 		try {
-			serverSocket = new ServerSocket(port);
+			selector = Selector.open();
+			routingChannel = openServerChannel(port);
+			dataChannel = openServerChannel(port + DATA_PORT_OFFSET);
 		} catch (IOException e) {
-			throw new RuntimeException("\nCannot open listener port "+port+". Now exit.\n", e);
+			throw new RuntimeException("\nCannot open listener port "+port+" or "+(port + DATA_PORT_OFFSET)+". Now exit.\n", e);
 		}
+
+		workers = Threads.newWorkers("talker-" + port, workerCount, queueCapacity);
+		closest = Threads.newWorkers("closest-" + port, workerCount, queueCapacity);
+		records = Threads.newWorkers("records-" + port, workerCount, queueCapacity);
+	}
+
+	/**
+	 * Size the worker pools of listeners created after this call
+	 * @param count: number of worker threads
+	 * @param capacity: number of decoded requests that may wait for a worker
+	 * (in virtual thread mode, count + capacity requests run at once)
+	 */
+	public static void setWorkers (int count, int capacity) {
+		workerCount = count;
+		queueCapacity = capacity;
+	}
+
+	private ServerSocketChannel openServerChannel (int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.socket().setReuseAddress(true);
+		channel.socket().bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+		return channel;
 	}
 
 	@Override
 	public void run() {
 		while (alive) {
-			Socket talkSocket = null;
 			try {
-				talkSocket = serverSocket.accept();
+				// wake up regularly while something waits for the worker queue
+				if (stalled.isEmpty()) {
+					selector.select();
+				}
+				else {
+					selector.select(10);
+				}
 			} catch (IOException e) {
 				throw new RuntimeException(
-						"Cannot accepting connection", e);
+						"Cannot select", e);
+			}
+
+			registerWrites();
+			resumeStalled();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+					}
+					else {
+						if (key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					}
+				} catch (IOException | CancelledKeyException e) {
+					closeKey(key);
+				}
+			}
+		}
+		closeAll();
+	}
+
+	/**
+	 * Accept a connection and start reading requests from it
+	 * @param server
+	 * @throws IOException
+	 */
+	private void accept (ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(key, server == dataChannel));
+	}
+
+	/**
+	 * Read what is available and submit every complete frame
+	 * @param key
+	 * @throws IOException
+	 */
+	private void read (SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		int n = channel.read(conn.in);
+		if (n < 0) {
+			// peer closed, finish writing what is left
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			conn.inputClosed = true;
+			if (conn.inFlight.get() == 0 && conn.out.isEmpty()) {
+				closeKey(key);
 			}
+			return;
+		}
+
+		conn.in.flip();
+		while (conn.in.remaining() >= 4) {
+			int length = conn.in.getInt(conn.in.position());
+			Codec.checkLength(length);
+			if (conn.in.remaining() < 4 + length) {
+				// frame does not fit, make room for the rest of it
+				if (conn.in.capacity() < 4 + length) {
+					ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+					bigger.put(conn.in);
+					conn.in = bigger;
+					conn.in.flip();
+				}
+				break;
+			}
+			ByteBuffer frame = conn.in.slice();
+			frame.position(4);
+			frame.limit(4 + length);
+			conn.in.position(conn.in.position() + 4 + length);
+			submit(conn, Codec.decode(frame));
+		}
+		conn.in.compact();
+
+		if (!conn.backlog.isEmpty() && !stalled.contains(conn)) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			stalled.add(conn);
+			pauseAccepting();
+		}
+	}
 
-			//new talker
-			new Thread(new Talker(talkSocket, local)).start();
+	private void submit (Connection conn, Message request) {
+		if (!conn.backlog.isEmpty() || !execute(conn, request)) {
+			conn.backlog.add(request);
 		}
 	}
 
+	private boolean execute (Connection conn, Message request) {
+		conn.inFlight.incrementAndGet();
+		try {
+			if (conn.data) {
+				(Node.forwards(request) ? workers : records).execute(local.newResponder(request, conn));
+			}
+			else if (Talker.answersLocally(request)) {
+				new Talker(request, conn, local).run();
+			}
+			else if (request.getOpcode() == Message.CLOSEST) {
+				closest.execute(new Talker(request, conn, local));
+			}
+			else {
+				workers.execute(new Talker(request, conn, local));
+			}
+			return true;
+		} catch (RejectedExecutionException e) {
+			conn.inFlight.decrementAndGet();
+			stalls.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Retry everything that found the worker queue full,
+	 * start reading and accepting again once it is all submitted
+	 */
+	private void resumeStalled () {
+		Iterator<Connection> it = stalled.iterator();
+		while (it.hasNext()) {
+			Connection conn = it.next();
+			while (!conn.backlog.isEmpty() && execute(conn, conn.backlog.peek())) {
+				conn.backlog.poll();
+			}
+			if (conn.backlog.isEmpty()) {
+				it.remove();
+				if (conn.key.isValid() && !conn.inputClosed) {
+					conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+		}
+		if (stalled.isEmpty()) {
+			resumeAccepting();
+		}
+	}
+
+	private void pauseAccepting () {
+		routingChannel.keyFor(selector).interestOps(0);
+		dataChannel.keyFor(selector).interestOps(0);
+	}
+
+	private void resumeAccepting () {
+		routingChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+		dataChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+	}
+
+	private void registerWrites () {
+		Connection conn;
+		while ((conn = writable.poll()) != null) {
+			if (conn.key.isValid()) {
+				conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	private void write (SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buf;
+		while ((buf = conn.out.peek()) != null) {
+			channel.write(buf);
+			if (buf.hasRemaining()) {
+				return;
+			}
+			conn.out.poll();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (conn.inputClosed && conn.inFlight.get() == 0 && conn.backlog.isEmpty()) {
+			closeKey(key);
+		}
+	}
+
+	private void closeKey (SelectionKey key) {
+		key.cancel();
+		stalled.remove(key.attachment());
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing left to do with a broken channel
+		}
+	}
+
+	private void closeAll () {
+		Threads.shutdown(workers);
+		Threads.shutdown(closest);
+		Threads.shutdown(records);
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Summary line of the worker pools
+	 * @return summary string
+	 */
+	public String summary () {
+		return "listener: " + Threads.summary(workers) + " closest: " + Threads.summary(closest) + " records: " + Threads.summary(records) + " stalls=" + stalls.get();
+	}
+
 	public void toDie() {
 		alive = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * One accepted connection. Input is only touched by the selector thread,
+	 * responses are queued by workers through reply().
+	 */
+	class Connection {
+
+		private final SelectionKey key;
+		private final boolean data;
+		private ByteBuffer in;
+		private final ArrayDeque<Message> backlog;
+		private final ConcurrentLinkedQueue<ByteBuffer> out;
+		private final AtomicInteger inFlight;
+		private boolean inputClosed;
+
+		Connection (SelectionKey key, boolean data) {
+			this.key = key;
+			this.data = data;
+			this.in = ByteBuffer.allocate(4096);
+			this.backlog = new ArrayDeque<Message>();
+			this.out = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.inFlight = new AtomicInteger();
+			this.inputClosed = false;
+		}
+
+		/**
+		 * Queue the response to one request and let the selector write it,
+		 * NOTHING if the response cannot be encoded (a field over 64 KB)
+		 * @param response
+		 */
+		void reply (Message response) {
+			try {
+				if (response != null) {
+					ByteBuffer frame;
+					try {
+						frame = Codec.encode(response);
+					} catch (IllegalArgumentException e) {
+						frame = Codec.encode(response.reply(Message.NOTHING));
+					}
+					out.add(frame);
+				}
+			} finally {
+				inFlight.decrementAndGet();
+				writable.add(this);
+				selector.wakeup();
+			}
+		}
 	}
 }
@@ -0,0 +1,219 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message class, one request or response of the wire protocol. Every
+ * message has an opcode, a request id (so responses can be matched to
+ * requests on a shared connection) and a ring number; the other fields are
+ * optional and only sent when set. See Codec for the binary format.
+ * @author Chuan Xia
+ *
+ */
+
+public class Message {
+
+	// routing port requests and their responses
+	public static final byte KEEP = 1;
+	public static final byte ALIVE = 2;
+	public static final byte YOURSUCC = 3;
+	public static final byte MYSUCC = 4;
+	public static final byte YOURPRE = 5;
+	public static final byte MYPRE = 6;
+	public static final byte CLOSEST = 7;
+	public static final byte MYCLOSEST = 8;
+	public static final byte FINDSUCC = 9;
+	public static final byte FOUNDSUCC = 10;
+	public static final byte IAMPRE = 11;
+	public static final byte NOTIFIED = 12;
+	public static final byte NOTHING = 13;
+	public static final byte SUCCLIST = 14;
+	public static final byte MYSUCCLIST = 15;
+
+	// data port requests and their responses
+	public static final byte PUTD = 20;
+	public static final byte PUTIP = 21;
+	public static final byte GETD = 22;
+	public static final byte GETIP = 23;
+	public static final byte STORED = 24;
+	public static final byte VALUE = 25;
+
+	// data port key handoff, see Handoff
+	public static final byte PULL = 26;
+	public static final byte CHUNK = 27;
+	public static final byte PUSH = 28;
+
+	// data port put of a domain and its IP, the node coordinates the
+	// forward and reverse writes in every ring
+	public static final byte PUT = 29;
+
+	// data port batches of records on the node responsible for them in a
+	// ring, see Batch; GETBATCH is answered with a CHUNK of the records found
+	public static final byte PUTBATCH = 30;
+	public static final byte GETBATCH = 31;
+
+	// data port lookup on behalf of a client: the node finds the record
+	// (in the request's ring, or every ring if -1) and caches it, see ReadCache
+	public static final byte RESOLVE = 32;
+
+	// data port request for the BloomFilter of one of the node's stores,
+	// answered with VALUE carrying the filter's bytes, see FilterCache
+	public static final byte FILTER = 33;
+
+	byte opcode;
+	int requestId;
+	int ring;
+	int vnode;
+	long id;
+	boolean hasId;
+	Peer peer;
+	String key;
+	String value;
+	long from;
+	boolean hasFrom;
+	int store;
+	List<Record> records;
+	List<Peer> peers;
+	byte[] bytes;
+
+	public Message (byte opcode) {
+		this(opcode, -1);
+	}
+
+	public Message (byte opcode, int ring) {
+		this.opcode = opcode;
+		this.ring = ring;
+		this.requestId = 0;
+		this.hasId = false;
+	}
+
+	/**
+	 * Response to this request, carries the same request id and ring
+	 * @param opcode: response opcode
+	 * @return response
+	 */
+	public Message reply (byte opcode) {
+		Message ret = new Message(opcode, ring);
+		ret.requestId = requestId;
+		return ret;
+	}
+
+	/**
+	 * Virtual node of the receiving host a routing request is for, see
+	 * Helper.sendRequest(Peer, Message)
+	 * @param vnode
+	 * @return this message
+	 */
+	public Message withVnode (int vnode) {
+		this.vnode = vnode;
+		return this;
+	}
+
+	public Message withId (long id) {
+		this.id = id;
+		this.hasId = true;
+		return this;
+	}
+
+	public Message withPeer (Peer peer) {
+		this.peer = peer;
+		return this;
+	}
+
+	public Message withKey (String key) {
+		this.key = key;
+		return this;
+	}
+
+	public Message withValue (String value) {
+		this.value = value;
+		return this;
+	}
+
+	/**
+	 * Start of an identifier range (from, id], e.g. the keys to hand over
+	 * @param from
+	 * @return this message
+	 */
+	public Message withFrom (long from) {
+		this.from = from;
+		this.hasFrom = true;
+		return this;
+	}
+
+	public Message withStore (int store) {
+		this.store = store;
+		return this;
+	}
+
+	public Message withRecords (List<Record> records) {
+		this.records = records;
+		return this;
+	}
+
+	public Message withPeers (List<Peer> peers) {
+		this.peers = peers;
+		return this;
+	}
+
+	public Message withBytes (byte[] bytes) {
+		this.bytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Getters
+	 * @return the variable caller wants
+	 */
+
+	public byte getOpcode () {
+		return opcode;
+	}
+
+	public int getRequestId () {
+		return requestId;
+	}
+
+	public int getRing () {
+		return ring;
+	}
+
+	public int getVnode () {
+		return vnode;
+	}
+
+	public long getId () {
+		return id;
+	}
+
+	public Peer getPeer () {
+		return peer;
+	}
+
+	public String getKey () {
+		return key;
+	}
+
+	public String getValue () {
+		return value;
+	}
+
+	public long getFrom () {
+		return from;
+	}
+
+	public int getStore () {
+		return store;
+	}
+
+	public List<Record> getRecords () {
+		return records == null ? Collections.<Record>emptyList() : records;
+	}
+
+	public List<Peer> getPeers () {
+		return peers;
+	}
+
+	public byte[] getBytes () {
+		return bytes;
+	}
+}
@@ -0,0 +1,433 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Micro benchmarks of the hot paths of routing and storage, run by
+ * `java Benchmark micro`. Every case is warmed up, then timed for a few
+ * rounds of a fixed length; the result is the mean cost per operation
+ * and its spread over the rounds. Nodes talk to a stand-in transport that
+ * answers at once without encoding anything, so the numbers are the CPU
+ * cost of the code and not of a network.
+ *
+ * Results can be saved (--save=file) and later runs compared with them
+ * (--baseline=file), so a change to one of these paths can be checked
+ * against the numbers from before it.
+ * @author Chuan Xia
+ *
+ */
+
+public class MicroBenchmark {
+
+	// operations between two looks at the clock
+	private static final int BATCH = 1024;
+
+	// results are consumed here so the JIT cannot drop the work
+	private static volatile long sink;
+
+	private final int warmup;
+	private final int rounds;
+	private final long roundNanos;
+	private final int threads;
+
+	/**
+	 * Constructor
+	 * @param warmup: untimed rounds per case
+	 * @param rounds: timed rounds per case
+	 * @param roundMillis: length of a round
+	 * @param threads: threads of the concurrent cases
+	 */
+	public MicroBenchmark (int warmup, int rounds, long roundMillis, int threads) {
+		this.warmup = warmup;
+		this.rounds = rounds;
+		this.roundNanos = roundMillis * 1000000L;
+		this.threads = threads;
+	}
+
+	public static void run (Map<String, String> options) {
+		MicroBenchmark bench = new MicroBenchmark(
+				Integer.parseInt(options.getOrDefault("warmup", "3")),
+				Integer.parseInt(options.getOrDefault("rounds", "5")),
+				Long.parseLong(options.getOrDefault("round", "1000")),
+				Integer.parseInt(options.getOrDefault("threads", "4")));
+		List<String> only = options.containsKey("only") ? Arrays.asList(options.get("only").split(",")) : null;
+
+		Map<String, Double> baseline = null;
+		if (options.containsKey("baseline")) {
+			try {
+				baseline = load(options.get("baseline"));
+			} catch (IOException e) {
+				System.out.println("Cannot read baseline "+options.get("baseline")+". Now exit.");
+				return;
+			}
+		}
+
+		// every node of the cases talks to the stand-in
+		Transport previous = Helper.getTransport();
+		Helper.setTransport(new StandIn());
+		LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>();
+		try {
+			System.out.println(String.format("%-16s %7s %12s %8s %14s %12s %8s",
+					"case", "threads", "ns/op", "+-", "ops/s", "baseline", "change"));
+			for (Case c : bench.cases()) {
+				if (only != null && !only.contains(c.name)) {
+					continue;
+				}
+				Result r = bench.measure(c);
+				results.put(c.name, r);
+				Double before = baseline == null ? null : baseline.get(c.name);
+				System.out.println(String.format("%-16s %7d %12.1f %7.1f%% %14.0f %12s %8s",
+						c.name, c.threads, r.mean, r.error, r.opsPerSecond,
+						before == null ? "-" : String.format("%.1f", before),
+						before == null ? "-" : String.format("%+.1f%%", 100 * (r.mean - before) / before)));
+			}
+		} finally {
+			Helper.setTransport(previous);
+		}
+
+		if (options.containsKey("save")) {
+			try {
+				save(options.get("save"), results);
+				System.out.println("\nSaved to "+options.get("save")+".");
+			} catch (IOException e) {
+				System.out.println("\nCannot save to "+options.get("save")+": "+e);
+			}
+		}
+	}
+
+	/**
+	 * The benchmarked paths
+	 * @return cases in the order they are run
+	 */
+	private List<Case> cases () {
+		ArrayList<Case> ret = new ArrayList<Case>();
+		final int mask = BATCH - 1;
+		Random random = new Random(1);
+
+		// key identifiers with the algorithm of ring 0 and with FAST
+		final String[] names = new String[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			names[i] = "host" + random.nextInt() + ".example.com";
+		}
+		ret.add(new Case("hash", 1) {
+			long run(int n, int seed) {
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					sum += Helper.hashString(names[(seed + i) & mask], 0);
+				}
+				return sum;
+			}
+		});
+		final int fastRing = Helper.MAX_RINGS - 1;
+		KeyHash.setAlgorithm(fastRing, KeyHash.FAST);
+		ret.add(new Case("hash-fast", 1) {
+			long run(int n, int seed) {
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					sum += Helper.hashString(names[(seed + i) & mask], fastRing);
+				}
+				return sum;
+			}
+		});
+
+		final long[] ids = new long[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			ids[i] = Helper.randomId(random);
+		}
+		ret.add(new Case("relative-id", 1) {
+			long run(int n, int seed) {
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					sum += Helper.computeRelativeId(ids[(seed + i) & mask], ids[(seed + i + 1) & mask]);
+				}
+				return sum;
+			}
+		});
+
+		// a node whose fingers cover the ring like in a ring of 1024 nodes
+		final Node node = new Node(address(1), Helper.getNumRings());
+		for (int r = 0; r < Helper.getNumRings(); r++) {
+			Peer[] ring = new Peer[1024];
+			for (int i = 0; i < ring.length; i++) {
+				ring[i] = Peer.of(address(i + 2));
+			}
+			long self = node.getPeer().getId(r);
+			for (int f = 1; f <= FingerTable.size(); f++) {
+				long start = Helper.ithStart(self, f);
+				Peer best = null;
+				for (Peer p : ring) {
+					if (best == null || Helper.computeRelativeId(p.getId(r), start) < Helper.computeRelativeId(best.getId(r), start)) {
+						best = p;
+					}
+				}
+				node.updateFingers(r, f, best);
+			}
+		}
+		ret.add(new Case("closest-finger", 1) {
+			long run(int n, int seed) {
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					sum += node.closest_preceding_finger(ids[(seed + i) & mask], 0).getId(0);
+				}
+				return sum;
+			}
+		});
+
+		// routing requests as the listener gets them: decode, process, encode
+		final ByteBuffer[] frames = new ByteBuffer[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			Message m;
+			switch (i & 3) {
+			case 0:
+				m = new Message(Message.CLOSEST, 0).withId(ids[i]);
+				break;
+			case 1:
+				m = new Message(Message.YOURSUCC, 1);
+				break;
+			case 2:
+				m = new Message(Message.SUCCLIST, 0);
+				break;
+			default:
+				m = new Message(Message.KEEP);
+			}
+			frames[i] = Codec.encode(m);
+		}
+		ret.add(new Case("talker", 1) {
+			long run(int n, int seed) {
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					ByteBuffer frame = frames[(seed + i) & mask].duplicate();
+					frame.position(4);
+					try {
+						Message response = node.process(Codec.decode(frame.slice()), false);
+						sum += Codec.encode(response).remaining();
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return sum;
+			}
+		});
+
+		// a record store of 100000 records under gets (half of them for
+		// missing keys) and 10% puts from every thread
+		final RecordStore store = new RecordStore("domain");
+		final int records = 100000;
+		for (int i = 0; i < records; i++) {
+			store.put("host" + i + ".example.com", "10.0." + (i >> 8 & 255) + "." + (i & 255));
+		}
+		final String[] keys = new String[2 * records];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "host" + i + ".example.com";
+		}
+		ret.add(new Case("store-get-put", threads) {
+			long run(int n, int seed) {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long sum = 0;
+				for (int i = 0; i < n; i++) {
+					int k = random.nextInt(keys.length);
+					if (random.nextInt(10) == 0) {
+						store.put(keys[k % records], "10.1.1.1");
+					}
+					else {
+						String v = store.get(keys[k]);
+						sum += v == null ? 0 : v.length();
+					}
+				}
+				return sum;
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Warm a case up, then time its rounds
+	 * @param c
+	 * @return mean ns/op of the rounds
+	 */
+	private Result measure (Case c) {
+		for (int i = 0; i < warmup; i++) {
+			round(c);
+		}
+		double[] costs = new double[rounds];
+		long ops = 0;
+		long elapsed = 0;
+		for (int i = 0; i < rounds; i++) {
+			long[] round = round(c);
+			ops += round[0];
+			elapsed += round[1];
+			costs[i] = (double) round[1] * c.threads / round[0];
+		}
+
+		Result ret = new Result();
+		for (double cost : costs) {
+			ret.mean += cost / rounds;
+		}
+		double variance = 0;
+		for (double cost : costs) {
+			variance += (cost - ret.mean) * (cost - ret.mean) / Math.max(1, rounds - 1);
+		}
+		ret.error = ret.mean == 0 ? 0 : 100 * Math.sqrt(variance) / ret.mean;
+		ret.opsPerSecond = ops / (elapsed / 1e9);
+		return ret;
+	}
+
+	/**
+	 * Run a case on its threads for one round
+	 * @return operations done and nanoseconds taken
+	 */
+	private long[] round (final Case c) {
+		final long[] ops = new long[c.threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(c.threads);
+		for (int t = 0; t < c.threads; t++) {
+			final int index = t;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long deadline = System.nanoTime() + roundNanos;
+					long n = 0;
+					long sum = 0;
+					int seed = index * 7919;
+					do {
+						sum += c.run(BATCH, seed);
+						seed += BATCH;
+						n += BATCH;
+					} while (System.nanoTime() < deadline);
+					sink += sum;
+					ops[index] = n;
+					done.countDown();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long elapsed = System.nanoTime() - begin;
+		long total = 0;
+		for (long n : ops) {
+			total += n;
+		}
+		return new long[] {total, elapsed};
+	}
+
+	private static Map<String, Double> load (String file) throws IOException {
+		LinkedHashMap<String, Double> ret = new LinkedHashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] tok = line.trim().split("\\s+");
+				if (tok.length == 2) {
+					ret.put(tok[0], Double.parseDouble(tok[1]));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return ret;
+	}
+
+	private static void save (String file, Map<String, Result> results) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			for (Map.Entry<String, Result> e : results.entrySet()) {
+				out.println(e.getKey() + " " + String.format("%.2f", e.getValue().mean));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static InetSocketAddress address (int i) {
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}), 8000);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * One benchmarked path
+	 */
+	private abstract static class Case {
+
+		private final String name;
+		private final int threads;
+
+		Case (String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		/**
+		 * Do n operations
+		 * @param seed: where to start in the case's inputs
+		 * @return anything computed from the results
+		 */
+		abstract long run (int n, int seed);
+	}
+
+	private static class Result {
+
+		private double mean;
+		private double error;
+		private double opsPerSecond;
+	}
+
+	/**
+	 * Transport that answers every node at once: KEEP with ALIVE, anything
+	 * else with NOTHING. Nodes served by it are never reachable.
+	 */
+	private static class StandIn implements Transport {
+
+		public Message request (InetSocketAddress server, Message req, int timeout) {
+			return req.reply(req.getOpcode() == Message.KEEP ? Message.ALIVE : Message.NOTHING);
+		}
+
+		public void evict (InetSocketAddress server) {
+		}
+
+		public Server listen (Node node) {
+			return new Server() {
+				public void start() {
+				}
+
+				public void toDie() {
+				}
+
+				public String summary() {
+					return "listener: stand-in";
+				}
+			};
+		}
+
+		public String summary () {
+			return "stand-in transport";
+		}
+	}
+}
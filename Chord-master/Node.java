@@ -1,101 +1,377 @@
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
 import java.util.ArrayList;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Node class that implements the core data structure 
- * and functionalities of a chord node
+ * Node class that implements the core data structure
+ * and functionalities of a chord node. The node takes part in every ring
+ * with its own identifier, finger table, successor and predecessor per ring;
+ * each ring is stabilized and has its fingers fixed by its own tasks.
+ *
+ * A node may host virtual nodes (see setVirtualNodes()): more members of
+ * every ring, each with its own identifiers, fingers, successors and
+ * tasks, so the node owns several smaller ranges rather than one. They
+ * share the node's listener, record stores, replicator and threads, and
+ * routing requests name the virtual node they are for.
  * @author Chuan Xia
  *
  */
 
 public class Node {
 
-	private ArrayList<Long> localId;
 	private InetSocketAddress localAddress;
-	private InetSocketAddress predecessor;
-	private HashMap<Integer, InetSocketAddress> finger;
-
-	private Listener listener;
-	private Stabilize stabilize;
-	private FixFingers fix_fingers;
+	private Peer localPeer;
+	private int numRings;
+	private AtomicReferenceArray<Peer> predecessor;
+	private FingerTable[] finger;
+	private AtomicReferenceArray<List<Peer>> successors;
+
+	private Transport.Server listener;
+	private Stabilize[] stabilize;
+	private FixFingers[] fix_fingers;
 	private AskPredecessor ask_predecessor;
-	private ServantThread sv;
+	private ScheduledExecutorService scheduler;
+	private List<ScheduledFuture<?>> tasks;
+	private boolean sharedTasks;
+	private Servant sv;
+	private Replicator replicator;
+	private ExecutorService fanout;
+
+	// the node hosting this one (itself unless this is a virtual node) and
+	// the host's members, index = virtual node number, members[0] = host
+	private Node host;
+	private Node[] members;
+
+	// lookup statistics per ring, see printStatistics()
+	private LatencyRecorder lookupLatency;
+	private AtomicLongArray lookups;
+	private AtomicLongArray lookupHops;
+
+	// persistence of the records, off unless setPersistence() is called
+	private static File dataDir = null;
+	private static int fsyncMillis = 0;
+	private static long flushBytes = 64L << 20;
+
+	// rings a PUT must be stored in before it is acknowledged, 0 for all
+	private static int writeQuorum = 0;
+
+	// records resolved for clients are cached, see setReadCache()
+	private static int readCacheSize = 10000;
+	private static long readCacheTtl = 30000;
+
+	// periodic tasks of every node run here if set, see setSharedScheduler()
+	private static ScheduledExecutorService sharedScheduler = null;
+
+	// copies of the owners' filters used by resolve(), 0 for none
+	private static long filterTtl = 5000;
+
+	// members of every ring per node, itself included, see setVirtualNodes()
+	public static final int MAX_VIRTUAL_NODES = 64;
+	private static int virtualNodes = 1;
+
+	// hops of the last lookup run by the current thread, see getLastLookupHops()
+	private static final ThreadLocal<int[]> lastLookupHops = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
 
 	/**
 	 * Constructor
 	 * @param address: this node's local address
+	 * @param NUM_RINGS: number of rings this node takes part in
 	 */
 	public Node (InetSocketAddress address, final int NUM_RINGS) {
+		this(address, NUM_RINGS, null, 0);
+	}
+
+	/**
+	 * Constructor of a node, or of a virtual node sharing its host's
+	 * listener, record stores and threads
+	 * @param address: this node's local address
+	 * @param NUM_RINGS: number of rings this node takes part in
+	 * @param host: null for a node, else the node hosting this virtual node
+	 * @param vnode: virtual node number, 0 for a node
+	 */
+	private Node (InetSocketAddress address, final int NUM_RINGS, Node host, int vnode) {
 
 		localAddress = address;
+		numRings = NUM_RINGS;
+
+		// hash this node's identifier in every ring once
+		long[] localId = new long[NUM_RINGS];
+		for (int i = 0; i < NUM_RINGS; i++) {
+			localId[i] = Helper.hashSocketAddress(localAddress, vnode, i);
+		}
+		localPeer = new Peer(localAddress, vnode, localId);
 
-		localId = new ArrayList<>();
-        for (int i = 0; i < NUM_RINGS; i++) {
-            localId.add(Helper.hashSocketAddress(localAddress, i));
-        }
+		// initialize an empty finger table and predecessor per ring
+		finger = new FingerTable[NUM_RINGS];
+		for (int i = 0; i < NUM_RINGS; i++) {
+			finger[i] = new FingerTable();
+		}
+		predecessor = new AtomicReferenceArray<Peer>(NUM_RINGS);
+		successors = new AtomicReferenceArray<List<Peer>>(NUM_RINGS);
+		for (int i = 0; i < NUM_RINGS; i++) {
+			successors.set(i, Collections.<Peer>emptyList());
+		}
 
-		// initialize an empty finge table
-		finger = new HashMap<Integer, InetSocketAddress>();
-		for (int i = 1; i <= 32; i++) {
-			updateIthFinger (i, null);
+		stabilize = new Stabilize[NUM_RINGS];
+		fix_fingers = new FixFingers[NUM_RINGS];
+		for (int i = 0; i < NUM_RINGS; i++) {
+			stabilize[i] = new Stabilize(this, i);
+			fix_fingers[i] = new FixFingers(this, i);
 		}
+		ask_predecessor = new AskPredecessor(this);
 
-		// initialize predecessor
-		predecessor = null;
+		// a virtual node shares everything else with its host
+		if (host != null) {
+			this.host = host;
+			members = host.members;
+			lookupLatency = host.lookupLatency;
+			lookups = host.lookups;
+			lookupHops = host.lookupHops;
+			listener = host.listener;
+			sv = host.sv;
+			replicator = host.replicator;
+			fanout = host.fanout;
+			return;
+		}
+
+		this.host = this;
+		lookupLatency = new LatencyRecorder("lookup", 4096);
+		lookups = new AtomicLongArray(NUM_RINGS);
+		lookupHops = new AtomicLongArray(NUM_RINGS);
 
 		// initialize threads
-		listener = new Listener(this);
-		stabilize = new Stabilize(this);
-		fix_fingers = new FixFingers(this);
-		ask_predecessor = new AskPredecessor(this);
-		sv = new ServantThread(this);
+		listener = Helper.getTransport().listen(this);
+		sv = new Servant();
+		replicator = new Replicator(this);
+		fanout = Executors.newCachedThreadPool(Threads.newFactory("put-" + address.getPort()));
+
+		members = new Node[virtualNodes];
+		members[0] = this;
+		for (int v = 1; v < members.length; v++) {
+			members[v] = new Node(address, NUM_RINGS, this, v);
+		}
+	}
+
+	/**
+	 * Keep the records of nodes created after this call in a write-ahead
+	 * log and memory-mapped segments, one subdirectory per node
+	 * @param dir: data directory, null keeps records in memory only
+	 * @param fsync: milliseconds a batch of puts collects before it is synced, -1 never syncs
+	 * @param flush: log size in bytes after which the records in memory are flushed into a segment
+	 */
+	public static void setPersistence (File dir, int fsync, long flush) {
+		dataDir = dir;
+		fsyncMillis = fsync;
+		flushBytes = flush;
+	}
+
+	/**
+	 * Set the write quorum of nodes created after this call
+	 * @param rings: number of rings a PUT must be stored in (both records)
+	 * before it is acknowledged, 0 for all rings
+	 */
+	public static void setWriteQuorum (int rings) {
+		writeQuorum = rings;
+	}
+
+	/**
+	 * Size the read cache of nodes created after this call
+	 * @param entries: records cached at most, 0 turns the cache off
+	 * @param ttlMillis: how long a cached record is served
+	 */
+	public static void setReadCache (int entries, long ttlMillis) {
+		readCacheSize = entries;
+		readCacheTtl = ttlMillis;
+	}
+
+	/**
+	 * Run the periodic tasks of nodes joining after this call on one
+	 * scheduler rather than on threads of their own, for running many
+	 * nodes in one JVM
+	 * @param scheduler: null gives every node its own threads again
+	 */
+	public static void setSharedScheduler (ScheduledExecutorService scheduler) {
+		sharedScheduler = scheduler;
+	}
+
+	/**
+	 * Set how long nodes created after this call use a copy of another
+	 * node's BloomFilter before fetching it again
+	 * @param ttlMillis: 0 to never skip asking the node responsible for a key
+	 */
+	public static void setFilterCache (long ttlMillis) {
+		filterTtl = ttlMillis;
+	}
+
+	/**
+	 * Set how many members of every ring the nodes created after this call
+	 * run: the node itself and count - 1 virtual nodes
+	 * @param count: in [1, MAX_VIRTUAL_NODES]
+	 */
+	public static void setVirtualNodes (int count) {
+		if (count < 1 || count > MAX_VIRTUAL_NODES) {
+			throw new IllegalArgumentException("Virtual nodes must be in [1, " + MAX_VIRTUAL_NODES + "]");
+		}
+		virtualNodes = count;
+	}
+
+	public static int getVirtualNodes () {
+		return virtualNodes;
 	}
 
 	/**
-	 * Create or join a ring 
+	 * Create or join a ring, then let the virtual nodes join through this node
 	 * @param contact
 	 * @return true if successfully create a ring
 	 * or join a ring via contact
 	 */
 	public boolean join (InetSocketAddress contact) {
 
-		// if contact is other node (join ring), try to contact that node
+		// if contact is other node (join ring), ask that node for
+		// this node's successor in every ring
 		// (contact will never be null)
-		if (contact != null && !contact.equals(localAddress)) {
-			InetSocketAddress successor = Helper.requestAddress(contact, "FINDSUCC_" + localId.get(0));
-			if (successor == null)  {
-				System.out.println("\nCannot find node you are trying to contact. Please exit.\n");
-				return false;
+		// and for the start of the range this node takes over from it;
+		// a virtual node joins through its host
+		final Peer[] source = new Peer[numRings];
+		final long[] from = new long[numRings];
+		if (contact != null && (host != this || !contact.equals(localAddress))) {
+			for (int r = 0; r < numRings; r++) {
+				Peer successor = Helper.requestPeer(contact, new Message(Message.FINDSUCC, r).withId(localPeer.getId(r)));
+				if (successor == null)  {
+					System.out.println("\nCannot find node you are trying to contact. Please exit.\n");
+					return false;
+				}
+				Peer pre = Helper.requestPeer(successor, Message.YOURPRE, r);
+				source[r] = successor;
+				from[r] = pre == null || pre.equals(localPeer) ? successor.getId(r) : pre.getId(r);
+				updateIthFinger(r, 1, successor);
 			}
-			updateIthFinger(1, successor);
 		}
 
-		// start all threads	
-		listener.start();
-		stabilize.start();
-		fix_fingers.start();
-		ask_predecessor.start();
-		sv.start();
+		// start listener and the periodic tasks, stabilize and fix fingers
+		// once per ring, on the host's threads for a virtual node
+		if (host == this) {
+			listener.start();
+			replicator.start();
+			tasks = new ArrayList<ScheduledFuture<?>>();
+			sharedTasks = sharedScheduler != null;
+			scheduler = sharedTasks ? sharedScheduler : Threads.newScheduler("maintenance-" + localAddress.getPort(), members.length * (2 * numRings + 1));
+		}
+		else {
+			tasks = host.tasks;
+			sharedTasks = host.sharedTasks;
+			scheduler = host.scheduler;
+		}
+		for (int r = 0; r < numRings; r++) {
+			schedule(stabilize[r], Stabilize.PERIOD);
+			schedule(fix_fingers[r], FixFingers.PERIOD);
+		}
+		schedule(ask_predecessor, AskPredecessor.PERIOD);
+
+		// pull this node's records from the successors while serving
+		// lookups, except from the host's own members, which share its stores
+		if (source[0] != null) {
+			Threads.newFactory("handoff-" + localAddress.getPort()).newThread(new Runnable() {
+				public void run() {
+					long n = 0;
+					for (int r = 0; r < numRings; r++) {
+						if (!source[r].getAddress().equals(localAddress)) {
+							n += Handoff.pull(Node.this, source[r], r, from[r], localPeer.getId(r));
+						}
+					}
+					System.out.println("Took over "+n+" records from the successors.");
+				}
+			}).start();
+		}
 
+		if (host == this) {
+			for (int v = 1; v < members.length; v++) {
+				if (!members[v].join(localAddress)) {
+					return false;
+				}
+			}
+		}
 		return true;
 	}
 
+	/**
+	 * Hand this node's records over to its successors before leaving: in
+	 * every ring the records in (predecessor, member] of every member are
+	 * pushed to the member's first successor on another node, all records
+	 * if the predecessor is not known.
+	 * @return number of records pushed
+	 */
+	public long leave () {
+		long n = 0;
+		for (Node m : members) {
+			for (int r = 0; r < numRings; r++) {
+				Peer successor = null;
+				for (Peer p : m.getSuccessors(r)) {
+					if (!p.getAddress().equals(localAddress)) {
+						successor = p;
+						break;
+					}
+				}
+				if (successor == null) {
+					continue;
+				}
+				Peer pre = m.getPredecessor(r);
+				long from = pre == null || pre.equals(m.localPeer) ? m.localPeer.getId(r) : pre.getId(r);
+				n += Handoff.push(this, successor, r, from, m.localPeer.getId(r));
+			}
+		}
+		System.out.println("Handed "+n+" records over to the successors.");
+		return n;
+	}
+
+	/**
+	 * Run a periodic task every period milliseconds after the previous
+	 * round finished. A failed round is reported and the next one still runs.
+	 * @param task
+	 * @param period
+	 */
+	private void schedule (final Runnable task, long period) {
+		tasks.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, 0, period, TimeUnit.MILLISECONDS));
+	}
+
 	/**
 	 * Notify successor that this node should be its predecessor
 	 * @param successor
+	 * @param ring_nr
 	 * @return successor's response
 	 */
-	public String notify(InetSocketAddress successor) {
-		if (successor!=null && !successor.equals(localAddress))
-			return Helper.sendRequest(successor, "IAMPRE_"+localAddress.getAddress().toString()+":"+localAddress.getPort());
+	public Message notify(Peer successor, int ring_nr) {
+		if (successor!=null && !successor.equals(localPeer))
+			return Helper.sendRequest(successor, new Message(Message.IAMPRE, ring_nr).withPeer(localPeer));
 		else
 			return null;
 	}
@@ -103,101 +379,137 @@ public class Node {
 	/**
 	 * Being notified by another node, set it as my predecessor if it is.
 	 * @param newpre
+	 * @param ring_nr
 	 */
-	public void notified (InetSocketAddress newpre) {
-		if (predecessor == null || predecessor.equals(localAddress)) {
-			this.setPredecessor(newpre);
-		}
-		else {
-			long oldpre_id = Helper.hashSocketAddress(predecessor, 0);
-			long local_relative_id = Helper.computeRelativeId(localId.get(0), oldpre_id);
-			long newpre_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(newpre, 0), oldpre_id);
-			if (newpre_relative_id > 0 && newpre_relative_id < local_relative_id)
-				this.setPredecessor(newpre);
+	public void notified (Peer newpre, int ring_nr) {
+		// compare and set, so a concurrent notification of a farther node
+		// cannot overwrite a closer one
+		while (true) {
+			Peer oldpre = predecessor.get(ring_nr);
+			if (oldpre != null && !oldpre.equals(localPeer)) {
+				long oldpre_id = oldpre.getId(ring_nr);
+				long local_relative_id = Helper.computeRelativeId(localPeer.getId(ring_nr), oldpre_id);
+				long newpre_relative_id = Helper.computeRelativeId(newpre.getId(ring_nr), oldpre_id);
+				if (newpre_relative_id <= 0 || newpre_relative_id >= local_relative_id)
+					return;
+			}
+			if (predecessor.compareAndSet(ring_nr, oldpre, newpre))
+				return;
 		}
 	}
 
 	/**
 	 * Ask current node to find id's successor.
 	 * @param id
+	 * @param ring_nr: ring to route in, -1 for the ring where id is closest to this node
+	 * @return id's successor's socket address
+	 */
+	public Peer find_successor (long id, int ring_nr) {
+		return find_successor(id, ring_nr, true);
+	}
+
+	/**
+	 * Ask current node to find id's successor
+	 * @param id
+	 * @param ring_nr: ring to route in, -1 for the ring where id is closest to this node
+	 * @param counted: false for this node's own maintenance (FixFingers),
+	 * kept out of the lookup latency, lookup and hop statistics
 	 * @return id's successor's socket address
 	 */
-	public InetSocketAddress find_successor (long id, int ring_nr) {
+	Peer find_successor (long id, int ring_nr, boolean counted) {
+
+		long start = System.nanoTime();
+
+		//dont look in a specific ring, take the one where id is closest
+		if (ring_nr == -1) {
+			ring_nr = closestRing(id);
+		}
 
 		// initialize return value as this node's successor (might be null)
-		InetSocketAddress ret = this.getSuccessor();
+		Peer ret = this.getSuccessor(ring_nr);
 
 		// find predecessor
-		InetSocketAddress pre = find_predecessor(id, ring_nr);
+		Peer pre = find_predecessor(id, ring_nr, counted);
 
 		// if other node found, ask it for its successor
-		if (!pre.equals(localAddress))
-			ret = Helper.requestAddress(pre, "YOURSUCC");
+		if (!pre.equals(localPeer))
+			ret = Helper.requestPeer(pre, Message.YOURSUCC, ring_nr);
 
 		// if ret is still null, set it as local node, return
 		if (ret == null)
-			ret = localAddress;
+			ret = localPeer;
 
+		if (counted) {
+			lookupLatency.record(System.nanoTime() - start);
+			lookups.incrementAndGet(ring_nr);
+		}
 		return ret;
 	}
 
+	/**
+	 * Ring in which id is closest after this node
+	 * @param id
+	 * @return ring number
+	 */
+	private int closestRing (long id) {
+		int ring_nr = 0;
+		long closest = Helper.computeRelativeId(id, localPeer.getId(0));
+		for (int r = 1; r < numRings; r++) {
+			long relative_id = Helper.computeRelativeId(id, localPeer.getId(r));
+			if (relative_id < closest) {
+				closest = relative_id;
+				ring_nr = r;
+			}
+		}
+		return ring_nr;
+	}
+
 	/**
 	 * Ask current node to find id's predecessor
 	 * @param findid
+	 * @param ring_nr
+	 * @param counted: count the hops in the lookup statistics
 	 * @return id's successor's socket address
 	 */
-	private InetSocketAddress find_predecessor (long findid, int ring_nr) {
-		InetSocketAddress n = this.localAddress;
-		InetSocketAddress n_successor = this.getSuccessor();
-		InetSocketAddress most_recently_alive = this.localAddress;
-        long findid_relative_id;
-
-        //dont look in a specific ring
-        if (ring_nr == -1) {
-
-            //check in which ring the findid is closer to local node
-            long findid_relative_id0 = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n, 0));
-            long findid_relative_id1 = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n, 1));
-
-            if (findid_relative_id0 <= findid_relative_id1) {
-                findid_relative_id = findid_relative_id0;
-                ring_nr = 0;
-            } else {
-                findid_relative_id = findid_relative_id1;
-                ring_nr = 1;
-            }
-        }
-        else {
-            findid_relative_id = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n, ring_nr));
-        }
+	private Peer find_predecessor (long findid, int ring_nr, boolean counted) {
+		Peer n = this.localPeer;
+		Peer n_successor = this.getSuccessor(ring_nr);
+		Peer most_recently_alive = this.localPeer;
+		long findid_relative_id = Helper.computeRelativeId(findid, n.getId(ring_nr));
+		int[] hops = lastLookupHops.get();
+		hops[0] = 0;
 
 		long n_successor_relative_id = 0;
 		if (n_successor != null)
-			n_successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(n_successor, ring_nr), Helper.hashSocketAddress(n, ring_nr));
+			n_successor_relative_id = Helper.computeRelativeId(n_successor.getId(ring_nr), n.getId(ring_nr));
 
 
 
 		while (!(findid_relative_id > 0 && findid_relative_id <= n_successor_relative_id)) {
 
 			// temporarily save current node
-			InetSocketAddress pre_n = n;
+			Peer pre_n = n;
 
 			// if current node is local node, find my closest
-			if (n.equals(this.localAddress)) {
+			if (n.equals(this.localPeer)) {
 				n = this.closest_preceding_finger(findid, ring_nr);
 			}
 
 			// else current node is remote node, sent request to it for its closest
 			else {
-				InetSocketAddress result = Helper.requestAddress(n, "CLOSEST_" + findid, ring_nr);
+				hops[0]++;
+				if (counted) {
+					lookupHops.incrementAndGet(ring_nr);
+				}
+				Peer result = Helper.requestPeer(n, new Message(Message.CLOSEST, ring_nr).withId(findid));
 
-				// if fail to get response, set n to most recently 
+				// if fail to get response, set n to most recently
 				if (result == null) {
 					n = most_recently_alive;
-					n_successor = Helper.requestAddress(n, "YOURSUCC", ring_nr);
+					n_successor = Helper.requestPeer(n, Message.YOURSUCC, ring_nr);
 					if (n_successor==null) {
 						System.out.println("It's not possible.");
-						return localAddress;
+						return localPeer;
 					}
 					continue;
 				}
@@ -207,24 +519,29 @@ public class Node {
 					return result;
 
 				// else n's closest is other node "result"
-				else {	
+				else {
 					// set n as most recently alive
-					most_recently_alive = n;		
+					most_recently_alive = n;
 					// ask "result" for its successor
-					n_successor = Helper.requestAddress(result, "YOURSUCC", ring_nr);
+					n_successor = Helper.requestPeer(result, Message.YOURSUCC, ring_nr);
 					// if we can get its response, then "result" must be our next n
 					if (n_successor!=null) {
 						n = result;
 					}
 					// else n sticks, ask n's successor
 					else {
-						n_successor = Helper.requestAddress(n, "YOURSUCC", ring_nr);
+						n_successor = Helper.requestPeer(n, Message.YOURSUCC, ring_nr);
+
+						// n answered just now, it is the best guess left
+						if (n_successor == null) {
+							return n;
+						}
 					}
 				}
 
 				// compute relative ids for while loop judgement
-				n_successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(n_successor, ring_nr), Helper.hashSocketAddress(n, ring_nr));
-				findid_relative_id = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n, ring_nr));
+				n_successor_relative_id = Helper.computeRelativeId(n_successor.getId(ring_nr), n.getId(ring_nr));
+				findid_relative_id = Helper.computeRelativeId(findid, n.getId(ring_nr));
 			}
 			if (pre_n.equals(n))
 				break;
@@ -235,137 +552,153 @@ public class Node {
 	/**
 	 * Return closest finger preceding node.
 	 * @param findid
+	 * @param ring_nr
 	 * @return closest finger preceding node's socket address
 	 */
-	public InetSocketAddress closest_preceding_finger (long findid, int ring_nr) {
+	public Peer closest_preceding_finger (long findid, int ring_nr) {
 
-	    //ring number should not be -1, but if it is, FATAL ERROR, exit!
-        if (ring_nr == -1) {
-            System.out.println("FATAL ERROR: ring number was -1 in closest_preceding_finger()!");
-            System.exit(1);
-        }
+		if (ring_nr < 0 || ring_nr >= numRings) {
+			throw new IllegalArgumentException("No ring " + ring_nr + " in closest_preceding_finger()");
+		}
 
-		long findid_relative = Helper.computeRelativeId(findid, localId.get(ring_nr));
+		long findid_relative = Helper.computeRelativeId(findid, localPeer.getId(ring_nr));
 
-		// check from last item in finger table
-		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ith_finger = finger.get(i);
+		// check from last item in this ring's finger table,
+		// all on the same snapshot of the table
+		Peer[] fingers = finger[ring_nr].snapshot();
+		for (int i = FingerTable.size(); i > 0; i--) {
+			Peer ith_finger = fingers[i];
 			if (ith_finger == null) {
 				continue;
 			}
-			long ith_finger_id = Helper.hashSocketAddress(ith_finger, ring_nr);
-			long ith_finger_relative_id = Helper.computeRelativeId(ith_finger_id, localId.get(ring_nr));
+			long ith_finger_id = ith_finger.getId(ring_nr);
+			long ith_finger_relative_id = Helper.computeRelativeId(ith_finger_id, localPeer.getId(ring_nr));
 
 			// if its relative id is the closest, check if its alive
 			if (ith_finger_relative_id > 0 && ith_finger_relative_id < findid_relative)  {
-				String response  = Helper.sendRequest(ith_finger, "KEEP");
-
 				//it is alive, return it
-				if (response!=null &&  response.equals("ALIVE")) {
+				if (Helper.keepAlive(ith_finger)) {
 					return ith_finger;
 				}
 
 				// else, remove its existence from finger table
 				else {
-					updateFingers(-2, ith_finger);
+					updateFingers(ring_nr, -2, ith_finger);
 				}
 			}
 		}
-		return localAddress;
+		return localPeer;
 	}
 
 	/**
-	 * Update the finger table based on parameters.
-	 * Synchronize, all threads trying to modify 
-	 * finger table only through this method. 
+	 * Update one ring's finger table based on parameters.
+	 * Synchronize per ring, all threads trying to modify
+	 * a finger table only through this method. Readers never
+	 * wait for it, they read the table's latest snapshot.
+	 * @param ring_nr
 	 * @param i: index or command code
 	 * @param value
 	 */
-	public synchronized void updateFingers(int i, InetSocketAddress value) {
+	public void updateFingers(int ring_nr, int i, Peer value) {
+		synchronized (finger[ring_nr]) {
 
-		// valid index in [1, 32], just update the ith finger
-		if (i > 0 && i <= 32) {
-			updateIthFinger(i, value);
-		}
+			// valid index in [1, FingerTable.size()], just update the ith finger
+			if (i > 0 && i <= FingerTable.size()) {
+				updateIthFinger(ring_nr, i, value);
+			}
 
-		// caller wants to delete
-		else if (i == -1) {
-			deleteSuccessor();
-		}
+			// caller wants to delete
+			else if (i == -1) {
+				deleteSuccessor(ring_nr);
+			}
 
-		// caller wants to delete a finger in table
-		else if (i == -2) {
-			deleteCertainFinger(value);
+			// caller wants to delete a finger in table
+			else if (i == -2) {
+				deleteCertainFinger(ring_nr, value);
 
-		}
+			}
 
-		// caller wants to fill successor
-		else if (i == -3) {
-			fillSuccessor();
+			// caller wants to fill successor
+			else if (i == -3) {
+				fillSuccessor(ring_nr);
+			}
 		}
-
 	}
 
 	/**
 	 * Update ith finger in finger table using new value
+	 * @param ring_nr
 	 * @param i: index
 	 * @param value
 	 */
-	private void updateIthFinger(int i, InetSocketAddress value) {
-		finger.put(i, value);
+	private void updateIthFinger(int ring_nr, int i, Peer value) {
+		finger[ring_nr].set(i, value);
 
 		// if the updated one is successor, notify the new successor
-		if (i == 1 && value != null && !value.equals(localAddress)) {
-			notify(value);
+		if (i == 1 && value != null && !value.equals(localPeer)) {
+			notify(value, ring_nr);
 		}
 	}
 
 	/**
 	 * Delete successor and all following fingers equal to successor
+	 * @param ring_nr
 	 */
-	private void deleteSuccessor() {
-		InetSocketAddress successor = getSuccessor();
+	private void deleteSuccessor(int ring_nr) {
+		Peer successor = getSuccessor(ring_nr);
 
 		//nothing to delete, just return
 		if (successor == null)
 			return;
 
 		// find the last existence of successor in the finger table
-		int i = 32;
-		for (i = 32; i > 0; i--) {
-			InetSocketAddress ithfinger = finger.get(i);
+		Peer[] fingers = finger[ring_nr].snapshot();
+		int i = FingerTable.size();
+		for (i = FingerTable.size(); i > 0; i--) {
+			Peer ithfinger = fingers[i];
 			if (ithfinger != null && ithfinger.equals(successor))
 				break;
 		}
 
 		// delete it, from the last existence to the first one
-		for (int j = i; j >= 1 ; j--) {
-			updateIthFinger(j, null);
-		}
+		finger[ring_nr].fill(1, i, null);
 
 		// if predecessor is successor, delete it
-		if (predecessor!= null && predecessor.equals(successor))
-			setPredecessor(null);
+		Peer pre = predecessor.get(ring_nr);
+		if (pre!= null && pre.equals(successor))
+			setPredecessor(ring_nr, null);
+
+		// the first live node of the successor list takes over at once
+		List<Peer> list = successors.get(ring_nr);
+		for (int j = 0; j < list.size(); j++) {
+			Peer next = list.get(j);
+			if (!next.equals(successor) && !next.equals(localPeer) && Helper.keepAlive(next)) {
+				successors.set(ring_nr, new ArrayList<Peer>(list.subList(j, list.size())));
+				updateIthFinger(ring_nr, 1, next);
+				return;
+			}
+		}
 
 		// try to fill successor
-		fillSuccessor();
-		successor = getSuccessor();
+		fillSuccessor(ring_nr);
+		successor = getSuccessor(ring_nr);
 
-		// if successor is still null or local node, 
-		// and the predecessor is another node, keep asking 
+		// if successor is still null or local node,
+		// and the predecessor is another node, keep asking
 		// it's predecessor until find local node's new successor
-		if ((successor == null || successor.equals(successor)) && predecessor!=null && !predecessor.equals(localAddress)) {
-			InetSocketAddress p = predecessor;
-			InetSocketAddress p_pre = null;
+		pre = predecessor.get(ring_nr);
+		if ((successor == null || successor.equals(localPeer)) && pre!=null && !pre.equals(localPeer)) {
+			Peer p = pre;
+			Peer p_pre = null;
 			while (true) {
-				p_pre = Helper.requestAddress(p, "YOURPRE");
+				p_pre = Helper.requestPeer(p, Message.YOURPRE, ring_nr);
 				if (p_pre == null)
 					break;
 
-				// if p's predecessor is node is just deleted, 
+				// if p's predecessor is node is just deleted,
 				// or itself (nothing found in p), or local address,
 				// p is current node's new successor, break
-				if (p_pre.equals(p) || p_pre.equals(localAddress)|| p_pre.equals(successor)) {
+				if (p_pre.equals(p) || p_pre.equals(localPeer)|| p_pre.equals(successor)) {
 					break;
 				}
 
@@ -376,41 +709,40 @@ public class Node {
 			}
 
 			// update successor
-			updateIthFinger(1, p);
+			updateIthFinger(ring_nr, 1, p);
 		}
 	}
 
 	/**
-	 * Delete a node from the finger table, here "delete" means deleting all existence of this node 
+	 * Delete a node from the finger table, here "delete" means deleting all existence of this node
+	 * @param ring_nr
 	 * @param f
 	 */
-	private void deleteCertainFinger(InetSocketAddress f) {
-		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ithfinger = finger.get(i);
-			if (ithfinger != null && ithfinger.equals(f))
-				finger.put(i, null);
-		}
+	private void deleteCertainFinger(int ring_nr, Peer f) {
+		finger[ring_nr].remove(f);
 	}
 
 	/**
 	 * Try to fill successor with candidates in finger table or even predecessor
+	 * @param ring_nr
 	 */
-	private void fillSuccessor() {
-		InetSocketAddress successor = this.getSuccessor();
-		if (successor == null || successor.equals(localAddress)) {
-			for (int i = 2; i <= 32; i++) {
-				InetSocketAddress ithfinger = finger.get(i);
-				if (ithfinger!=null && !ithfinger.equals(localAddress)) {
-					for (int j = i-1; j >=1; j--) {
-						updateIthFinger(j, ithfinger);
-					}
+	private void fillSuccessor(int ring_nr) {
+		Peer successor = this.getSuccessor(ring_nr);
+		if (successor == null || successor.equals(localPeer)) {
+			Peer[] fingers = finger[ring_nr].snapshot();
+			for (int i = 2; i <= FingerTable.size(); i++) {
+				Peer ithfinger = fingers[i];
+				if (ithfinger!=null && !ithfinger.equals(localPeer)) {
+					finger[ring_nr].fill(1, i-1, ithfinger);
+					notify(ithfinger, ring_nr);
 					break;
 				}
 			}
 		}
-		successor = getSuccessor();
-		if ((successor == null || successor.equals(localAddress)) && predecessor!=null && !predecessor.equals(localAddress)) {
-			updateIthFinger(1, predecessor);
+		successor = getSuccessor(ring_nr);
+		Peer pre = predecessor.get(ring_nr);
+		if ((successor == null || successor.equals(localPeer)) && pre!=null && !pre.equals(localPeer)) {
+			updateIthFinger(ring_nr, 1, pre);
 		}
 
 	}
@@ -418,17 +750,19 @@ public class Node {
 
 	/**
 	 * Clear predecessor.
+	 * @param ring_nr
 	 */
-	public void clearPredecessor () {
-		setPredecessor(null);
+	public void clearPredecessor (int ring_nr) {
+		setPredecessor(ring_nr, null);
 	}
 
 	/**
 	 * Set predecessor using a new value.
+	 * @param ring_nr
 	 * @param pre
 	 */
-	private synchronized void setPredecessor(InetSocketAddress pre) {
-		predecessor = pre;
+	private void setPredecessor(int ring_nr, Peer pre) {
+		predecessor.set(ring_nr, pre);
 	}
 
 
@@ -438,22 +772,153 @@ public class Node {
 	 */
 
 	public long getId() {
-		return localId.get(0);
+		return localPeer.getId(0);
 	}
 
 	public InetSocketAddress getAddress() {
 		return localAddress;
 	}
 
-	public InetSocketAddress getPredecessor() {
-		return predecessor;
+	public Peer getPeer() {
+		return localPeer;
+	}
+
+	public int getNumRings() {
+		return numRings;
+	}
+
+	public Peer getPredecessor(int ring_nr) {
+		return predecessor.get(ring_nr);
+	}
+
+	public Peer getSuccessor(int ring_nr) {
+		return finger[ring_nr].get(1);
+	}
+
+	/**
+	 * This node and its virtual nodes
+	 * @return members, index = virtual node number, must not be modified
+	 */
+	public Node[] getMembers() {
+		return members;
+	}
+
+	/**
+	 * One of this node's members
+	 * @param vnode: virtual node number
+	 * @return member, null if there is no such virtual node
+	 */
+	public Node getMember(int vnode) {
+		return vnode >= 0 && vnode < members.length ? members[vnode] : null;
+	}
+
+	/**
+	 * The member of this node that comes first at or after an identifier
+	 * in a ring, the one responsible for it if any member is
+	 * @param id
+	 * @param ring_nr
+	 * @return member, this node if it has no virtual nodes
+	 */
+	Node memberFor(long id, int ring_nr) {
+		Node ret = members[0];
+		long closest = Helper.computeRelativeId(ret.localPeer.getId(ring_nr), id);
+		for (int v = 1; v < members.length; v++) {
+			long relative_id = Helper.computeRelativeId(members[v].localPeer.getId(ring_nr), id);
+			if (relative_id < closest) {
+				closest = relative_id;
+				ret = members[v];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Successor list of a ring, led by the current successor
+	 * @param ring_nr
+	 * @return up to max(1, Helper.getReplicas()) successors (one more per
+	 * virtual node, which may be on this node), nearest first, must not be modified
+	 */
+	public List<Peer> getSuccessors(int ring_nr) {
+		Peer successor = getSuccessor(ring_nr);
+		if (successor == null || successor.equals(localPeer)) {
+			return Collections.<Peer>emptyList();
+		}
+		List<Peer> list = successors.get(ring_nr);
+		if (!list.isEmpty() && list.get(0).equals(successor)) {
+			return list;
+		}
+		return Collections.singletonList(successor);
 	}
 
-	public InetSocketAddress getSuccessor() {
-		if (finger != null && finger.size() > 0) {
-			return finger.get(1);
+	/**
+	 * Rebuild a ring's successor list from the successor's own list, see
+	 * Stabilize. Successors that newly became replicas get a full copy of
+	 * this node's range.
+	 * @param ring_nr
+	 * @param successor
+	 * @param theirs: successor's successor list
+	 */
+	public void updateSuccessors(int ring_nr, Peer successor, List<Peer> theirs) {
+		int size = Math.max(1, Helper.getReplicas()) + members.length - 1;
+		ArrayList<Peer> list = new ArrayList<Peer>(size);
+		list.add(successor);
+		for (Peer p : theirs) {
+			if (list.size() == size || p.equals(localPeer)) {
+				break;
+			}
+			if (!list.contains(p)) {
+				list.add(p);
+			}
+		}
+
+		List<Peer> old = successors.getAndSet(ring_nr, Collections.unmodifiableList(list));
+		List<Peer> before = Replicator.replicas(localAddress, old);
+		for (Peer p : Replicator.replicas(localAddress, list)) {
+			if (!Replicator.onHost(before, p.getAddress())) {
+				replicator.resync(this, ring_nr, p);
+			}
 		}
-		return null;
+	}
+
+	public long getLookups(int ring_nr) {
+		return lookups.get(ring_nr);
+	}
+
+	public long getLookupHops(int ring_nr) {
+		return lookupHops.get(ring_nr);
+	}
+
+	RecordStore getStore(int store) {
+		return sv.store(store);
+	}
+
+	/**
+	 * Store a record handed over by another node
+	 * @param record
+	 * @return true if stored
+	 */
+	boolean storeRecord(Record record) {
+		return sv.put(record.getStore(), record.getKey(), record.getValue());
+	}
+
+	/**
+	 * Keys of a store in the range (from, to] of a ring, see Handoff
+	 * @param store
+	 * @param ring_nr
+	 * @param from
+	 * @param to
+	 * @return keys, sorted
+	 */
+	byte[][] keysInRange(int store, int ring_nr, long from, long to) {
+		return Handoff.sortedKeys(sv.store(store), ring_nr, from, to);
+	}
+
+	/**
+	 * Number of remote hops the last lookup run by the calling thread took
+	 * @return hops
+	 */
+	static int getLastLookupHops() {
+		return lastLookupHops.get()[0];
 	}
 
 	/**
@@ -462,173 +927,556 @@ public class Node {
 
 	public void printNeighbors () {
 		System.out.println("\nYou are listening on port "+localAddress.getPort()+"."
-				+ "\nYour position is "+Helper.hexIdAndPosition(localAddress)+".");
-		InetSocketAddress successor = finger.get(1);
-		
-		// if it cannot find both predecessor and successor
-		if ((predecessor == null || predecessor.equals(localAddress)) && (successor == null || successor.equals(localAddress))) {
-			System.out.println("Your predecessor is yourself.");
-			System.out.println("Your successor is yourself.");
-
+				+ "\nYour position is "+Helper.hexIdAndPosition(localPeer)+".");
+		for (int v = 1; v < members.length; v++) {
+			System.out.println("Your virtual node "+v+" is at "+Helper.hexIdAndPosition(members[v].localPeer)+".");
 		}
-		
-		// else, it can find either predecessor or successor
-		else {
-			if (predecessor != null) {
-				System.out.println("Your predecessor is node "+predecessor.getAddress().toString()+", "
-						+ "port "+predecessor.getPort()+ ", position "+Helper.hexIdAndPosition(predecessor)+".");
-			}
-			else {
-				System.out.println("Your predecessor is updating.");
-			}
+		for (int r = 0; r < numRings; r++) {
+			Peer pre = predecessor.get(r);
+			Peer successor = getSuccessor(r);
+			String ring = numRings > 1 ? "In ring "+r+", your" : "Your";
+
+			// if it cannot find both predecessor and successor
+			if ((pre == null || pre.equals(localPeer)) && (successor == null || successor.equals(localPeer))) {
+				System.out.println(ring+" predecessor is yourself.");
+				System.out.println(ring+" successor is yourself.");
 
-			if (successor != null) {
-				System.out.println("Your successor is node "+successor.getAddress().toString()+", "
-						+ "port "+successor.getPort()+ ", position "+Helper.hexIdAndPosition(successor)+".");
 			}
+
+			// else, it can find either predecessor or successor
 			else {
-				System.out.println("Your successor is updating.");
+				if (pre != null) {
+					System.out.println(ring+" predecessor is node "+pre.getAddress().getAddress().toString()+", "
+							+ "port "+pre.getAddress().getPort()+ ", position "+Helper.hexIdAndPosition(pre)+".");
+				}
+				else {
+					System.out.println(ring+" predecessor is updating.");
+				}
+
+				if (successor != null) {
+					System.out.println(ring+" successor is node "+successor.getAddress().getAddress().toString()+", "
+							+ "port "+successor.getAddress().getPort()+ ", position "+Helper.hexIdAndPosition(successor)+".");
+				}
+				else {
+					System.out.println(ring+" successor is updating.");
+				}
 			}
 		}
 	}
 
 	public void printDataStructure () {
 		System.out.println("\n==============================================================");
-		System.out.println("\nLOCAL:\t\t\t\t"+localAddress.toString()+"\t"+Helper.hexIdAndPosition(localAddress));
-		if (predecessor != null)
-			System.out.println("\nPREDECESSOR:\t\t\t"+predecessor.toString()+"\t"+Helper.hexIdAndPosition(predecessor));
-		else 
-			System.out.println("\nPREDECESSOR:\t\t\tNULL");
-		System.out.println("\nFINGER TABLE:\n");
-		for (int i = 1; i <= 32; i++) {
-			long ithstart = Helper.ithStart(Helper.hashSocketAddress(localAddress, 0),i);
-			InetSocketAddress f = finger.get(i);
-			StringBuilder sb = new StringBuilder();
-			sb.append(i+"\t"+ Helper.longTo8DigitHex(ithstart)+"\t\t");
-			if (f!= null)
-				sb.append(f.toString()+"\t"+Helper.hexIdAndPosition(f));
-
-			else 
-				sb.append("NULL");
-			System.out.println(sb.toString());
+		System.out.println("\nLOCAL:\t\t\t\t"+localAddress.toString()+"\t"+Helper.hexIdAndPosition(localPeer));
+		for (int r = 0; r < numRings; r++) {
+			System.out.println("\nRING "+r+":");
+			Peer pre = predecessor.get(r);
+			if (pre != null)
+				System.out.println("\nPREDECESSOR:\t\t\t"+pre.toString()+"\t"+Helper.hexIdAndPosition(pre));
+			else
+				System.out.println("\nPREDECESSOR:\t\t\tNULL");
+			System.out.println("\nSUCCESSOR LIST:\n");
+			for (Peer s : getSuccessors(r)) {
+				System.out.println(s.toString()+"\t"+Helper.hexIdAndPosition(s));
+			}
+			System.out.println("\nFINGER TABLE:\n");
+			Peer[] fingers = finger[r].snapshot();
+			for (int i = 1; i <= FingerTable.size(); i++) {
+				long ithstart = Helper.ithStart(localPeer.getId(r),i);
+				Peer f = fingers[i];
+				StringBuilder sb = new StringBuilder();
+				sb.append(i+"\t"+ Helper.idToHex(ithstart)+"\t\t");
+				if (f!= null)
+					sb.append(f.toString()+"\t"+Helper.hexIdAndPosition(f));
+
+				else
+					sb.append("NULL");
+				System.out.println(sb.toString());
+			}
 		}
 		System.out.println("\n==============================================================\n");
 	}
 
+	public void printStatistics () {
+		System.out.println("\n"+Helper.getRpcLatency().summary());
+		System.out.println(lookupLatency.summary());
+		System.out.println(Helper.getTransport().summary());
+		System.out.println(listener.summary());
+		System.out.println(sv.domain.summary());
+		System.out.println(sv.ips.summary());
+		if (sv.wal != null) {
+			System.out.println(sv.wal.summary());
+		}
+		System.out.println(replicator.summary());
+		if (sv.cache != null) {
+			System.out.println(sv.cache.summary());
+		}
+		if (sv.filters != null) {
+			System.out.println(sv.filters.summary());
+		}
+		for (int r = 0; r < numRings; r++) {
+			long n = lookups.get(r);
+			if (n > 0) {
+				System.out.println(String.format("ring %d lookups: %d, hops: avg=%.2f", r, n, (double) lookupHops.get(r) / n));
+			}
+		}
+		System.out.println("read timeout: "+Helper.getReadTimeout()+"ms, threads: "+Threads.getMode());
+	}
+
+
 	/**
 	 * Stop this node's all threads.
 	 */
 	public void stopAllThreads() {
 		if (listener != null)
 			listener.toDie();
-		if (fix_fingers != null)
-			fix_fingers.toDie();
-		if (stabilize != null)
-			stabilize.toDie();
-		if (ask_predecessor != null)
-			ask_predecessor.toDie();
+		if (scheduler != null && sharedTasks) {
+			for (ScheduledFuture<?> task : tasks) {
+				task.cancel(true);
+			}
+		}
+		else if (scheduler != null)
+			scheduler.shutdownNow();
+		replicator.stop();
+		fanout.shutdownNow();
+		if (sv.wal != null)
+			sv.wal.close();
 	}
 
-	private class ServantThread extends Thread{
+	/**
+	 * Create the handler for one request received on the data port
+	 * @param request
+	 * @param connection: where the response goes
+	 * @return handler to run on a listener worker
+	 */
+	Runnable newResponder(Message request, Listener.Connection connection) {
+		return sv.new Responder(request, connection);
+	}
+
+	/**
+	 * Whether a data request waits on other nodes while it is processed
+	 * @param request
+	 * @return true for PUT and RESOLVE, false for the requests answered
+	 * from this node's own records
+	 */
+	static boolean forwards(Message request) {
+		return request != null && (request.getOpcode() == Message.PUT || request.getOpcode() == Message.RESOLVE);
+	}
+
+	/**
+	 * Process one request in the calling thread, for a transport that
+	 * delivers requests itself rather than through a Listener
+	 * @param request
+	 * @param data: true if sent to the data port, false for the routing port
+	 * @return response
+	 */
+	Message process(Message request, boolean data) {
+		if (data) {
+			return sv.new Responder(request, null).process(request);
+		}
+		return new Talker(request, null, this).processRequest(request);
+	}
 
-		private Map<String,String> ips;
-		private Map<String,String> domain;
-		private ServerSocket sv;
-		private boolean alive;
+	/**
+	 * Servant that owns this node's domain -> IP and IP -> domain records
+	 * and answers the requests sent to the data port. Many responders run
+	 * at once, the record stores are safe for that.
+	 */
+	private class Servant {
 
-		ServantThread(Node n){
+		// a scan for PULL requests is kept this long after its last chunk
+		private static final long SCAN_IDLE = 60000;
 
-			ips = new HashMap<>();
-			domain = new HashMap<>();
-			alive = true;
-			InetSocketAddress localAddress = n.getAddress();
-			int port = localAddress.getPort() + 2000;
-			System.out.println("port " + port);
-			try {
-				sv = new ServerSocket(port);
-			} catch (IOException e) {
-				e.printStackTrace();
+		private RecordStore ips;
+		private RecordStore domain;
+		private WriteAheadLog wal;
+		private ReadCache cache;
+		private FilterCache filters;
+
+		// keys of the ranges being pulled by joining nodes, see scan()
+		private final ConcurrentHashMap<String, Scan> scans = new ConcurrentHashMap<String, Scan>();
+
+		Servant(){
+			ips = new RecordStore("ip");
+			domain = new RecordStore("domain");
+			if (readCacheSize > 0) {
+				cache = new ReadCache(readCacheSize, readCacheTtl);
+			}
+			if (filterTtl > 0) {
+				filters = new FilterCache(filterTtl);
 			}
-		}
 
-		public void run() {
-			while(alive) {
+			// bring back the records stored before the last shutdown
+			if (dataDir != null) {
+				File dir = new File(dataDir, "node-" + localAddress.getPort());
+				wal = new WriteAheadLog(dir, new RecordStore[] {domain, ips}, fsyncMillis, flushBytes);
+				long start = System.nanoTime();
 				try {
-					Socket ss = sv.accept();
-					ResponseThread rt = new ResponseThread(ss, ips, domain);
-					rt.start();
+					long n = wal.recover();
+					System.out.println("Opened "+dir+" in "+(System.nanoTime() - start) / 1000000+"ms, replayed "+n+" records from the log.");
 				} catch (IOException e) {
-					e.printStackTrace();
+					throw new RuntimeException("\nCannot use data directory "+dir+". Now exit.\n", e);
 				}
 			}
 		}
 
-		public void toDie() {
-			alive = false;
+		/**
+		 * Store a record, in the log first if there is one
+		 * @param store: Record.DOMAIN or Record.IP
+		 * @param key
+		 * @param value
+		 * @return true if stored
+		 */
+		private boolean put(int store, String key, String value) {
+			if (wal != null) {
+				return wal.append(store, key, value);
+			}
+			store(store).put(key, value);
+			return true;
 		}
 
-		private class ResponseThread extends Thread {
+		/**
+		 * Coordinate a PUT: store the domain -> IP and IP -> domain records
+		 * on the nodes responsible for them in every ring, all 2 * K writes
+		 * at once. The PUT is acknowledged as soon as both records are
+		 * stored in writeQuorum rings; the other writes carry on.
+		 * @param domain
+		 * @param ip
+		 * @return true if the quorum was reached
+		 */
+		private boolean coordinate(final String domain, final String ip) {
+			if (cache != null) {
+				cache.invalidate(Record.DOMAIN, domain);
+				cache.invalidate(Record.IP, ip);
+			}
+			int quorum = writeQuorum <= 0 || writeQuorum > numRings ? numRings : writeQuorum;
+			CompletionService<Integer> done = new ExecutorCompletionService<Integer>(fanout);
+			for (int r = 0; r < numRings; r++) {
+				final int ring_nr = r;
+				for (final Record record : new Record[] {new Record(Record.DOMAIN, domain, ip), new Record(Record.IP, ip, domain)}) {
+					// ring_nr if stored, ~ring_nr (negative) if not
+					done.submit(new Callable<Integer>() {
+						public Integer call() {
+							try {
+								return write(ring_nr, record) ? ring_nr : ~ring_nr;
+							} catch (RuntimeException e) {
+								return ~ring_nr;
+							}
+						}
+					});
+				}
+			}
 
-			private Socket ss;
-			private Map<String,String> ips;
-			private Map<String,String> domain;
+			// count the rings where both writes succeeded and the rings where
+			// one failed, stop once the quorum is reached or can no longer be
+			int[] stored = new int[numRings];
+			boolean[] lost = new boolean[numRings];
+			int complete = 0;
+			int failed = 0;
+			try {
+				for (int i = 0; i < 2 * numRings && complete < quorum; i++) {
+					int ring_nr;
+					try {
+						ring_nr = done.take().get();
+					} catch (ExecutionException e) {
+						continue;
+					}
+					if (ring_nr < 0) {
+						if (!lost[~ring_nr]) {
+							lost[~ring_nr] = true;
+							failed++;
+						}
+						if (numRings - failed < quorum) {
+							break;
+						}
+					}
+					else if (++stored[ring_nr] == 2) {
+						complete++;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return complete >= quorum;
+		}
 
-			ResponseThread(Socket ss, Map<String,String> ips, Map<String,String> domain){
-				this.ss = ss;
-				this.ips = ips;
-				this.domain = domain;
+		/**
+		 * Store one record on the node responsible for it in a ring, this
+		 * node included
+		 * @param ring_nr
+		 * @param record
+		 * @return true if stored
+		 */
+		private boolean write(int ring_nr, Record record) {
+			Peer owner = find_successor(Helper.hashString(record.getKey(), ring_nr), ring_nr);
+			if (owner.getAddress().equals(localAddress)) {
+				return putPrimary(ring_nr, record);
+			}
+			byte type = record.getStore() == Record.DOMAIN ? Message.PUTD : Message.PUTIP;
+			String domain = record.getStore() == Record.DOMAIN ? record.getKey() : record.getValue();
+			String ip = record.getStore() == Record.DOMAIN ? record.getValue() : record.getKey();
+			Message response = Helper.sendRequest(Helper.dataAddress(owner.getAddress()), new Message(type, ring_nr).withKey(domain).withValue(ip));
+			// the owner's filter now has the key, a copy fetched before may not
+			if (filters != null) {
+				filters.invalidate(owner.getAddress());
 			}
+			return response != null && response.getOpcode() == Message.STORED;
+		}
 
-			public void run() {
+		/**
+		 * Store a record this node is responsible for in a ring and queue
+		 * it for the ring's replicas
+		 * @param ring_nr: ring the client found this node in, -1 if not known
+		 * @param record
+		 * @return true if stored
+		 */
+		private boolean putPrimary(int ring_nr, Record record) {
+			if (!put(record.getStore(), record.getKey(), record.getValue())) {
+				return false;
+			}
+			if (ring_nr >= 0 && ring_nr < numRings) {
+				replicator.replicate(owner(record.getKey(), ring_nr), ring_nr, record);
+			}
+			return true;
+		}
+
+		/**
+		 * The member of this node a key belongs to in a ring
+		 * @param key
+		 * @param ring_nr
+		 * @return member
+		 */
+		private Node owner(String key, int ring_nr) {
+			return members.length == 1 ? Node.this : memberFor(Helper.hashString(key, ring_nr), ring_nr);
+		}
+
+		/**
+		 * Store several records, in the log first if there is one
+		 * @param records
+		 * @return true if all are stored
+		 */
+		private boolean putAll(List<Record> records) {
+			for (Record r : records) {
+				if (r.getStore() < 0 || r.getStore() >= Record.STORES) {
+					return false;
+				}
+			}
+			if (wal != null) {
+				return wal.appendAll(records);
+			}
+			for (Record r : records) {
+				store(r.getStore()).put(r.getKey(), r.getValue());
+			}
+			return true;
+		}
+
+		/**
+		 * Check if this node is responsible for a key in a ring, i.e. the
+		 * key is in (predecessor, member] of one of its members. Gets that
+		 * name a ring were routed by a client's route cache and are
+		 * redirected (answered NOTHING) if it is out of date.
+		 * @param key
+		 * @param ring_nr: -1 if the get was routed by the nodes
+		 * @return false only if the node knows it is not responsible
+		 */
+		private boolean responsible(String key, int ring_nr) {
+			if (ring_nr < 0 || ring_nr >= numRings) {
+				return true;
+			}
+			long id = Helper.hashString(key, ring_nr);
+			Node m = memberFor(id, ring_nr);
+			Peer pre = m.getPredecessor(ring_nr);
+			if (pre == null || pre.equals(m.localPeer)) {
+				return true;
+			}
+			return Handoff.inRange(id, pre.getId(ring_nr), m.localPeer.getId(ring_nr));
+		}
 
+		/**
+		 * Resolve a key for a client, from the read cache if it has it,
+		 * else from the nodes responsible for it. A node whose filter
+		 * says it does not have the key is not asked.
+		 * @param store: Record.DOMAIN or Record.IP
+		 * @param key
+		 * @param ring_nr: ring to look in, -1 for every ring in turn
+		 * @return value, null if not found
+		 */
+		private String resolve(int store, String key, int ring_nr) {
+			String ret = cache == null ? null : cache.get(store, key);
+			if (ret != null) {
+				return ret;
+			}
+			int first = ring_nr < 0 ? 0 : ring_nr;
+			int last = ring_nr < 0 ? numRings - 1 : ring_nr;
+			for (int r = first; r <= last && ret == null; r++) {
+				Peer owner = find_successor(Helper.hashString(key, r), r);
+				if (owner.getAddress().equals(localAddress)) {
+					ret = store(store).get(key);
+				}
+				else if (filters == null || filters.mightContain(owner, store, key)) {
+					Message response = Helper.sendRequest(Helper.dataAddress(owner.getAddress()), new Message(store == Record.DOMAIN ? Message.GETD : Message.GETIP).withKey(key));
+					ret = response == null ? null : response.getValue();
+				}
+			}
+			if (ret != null && cache != null) {
+				cache.put(store, key, ret);
+			}
+			return ret;
+		}
+
+		private RecordStore store(int store) {
+			return store == Record.DOMAIN ? domain : ips;
+		}
+
+		/**
+		 * Keys of a range being pulled. They are collected once when the
+		 * first chunk is asked for and the following chunks are cut from the
+		 * same sorted list, so a handoff scans the stores only once.
+		 * @param request: PULL request
+		 * @return keys, sorted
+		 */
+		private byte[][] scan(Message request) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<String, Scan>> it = scans.entrySet().iterator(); it.hasNext(); ) {
+				if (now - it.next().getValue().used > SCAN_IDLE) {
+					it.remove();
+				}
+			}
+			String name = request.getStore()+"/"+request.getRing()+"/"+request.getFrom()+"/"+request.getId();
+			Scan scan = scans.get(name);
+			if (scan == null || request.getKey() == null || request.getKey().isEmpty()) {
+				scan = new Scan(Handoff.sortedKeys(store(request.getStore()), request.getRing(), request.getFrom(), request.getId()));
+				scans.put(name, scan);
+			}
+			scan.used = now;
+			return scan.keys;
+		}
+
+		private class Responder implements Runnable {
+
+			private Message request;
+			private Listener.Connection connection;
+
+			Responder(Message request, Listener.Connection connection){
+				this.request = request;
+				this.connection = connection;
+			}
+
+			public void run() {
+				// the connection waits for a reply to every request, even
+				// one that cannot be processed
+				Message response = null;
 				try {
-					ObjectOutputStream oos = new ObjectOutputStream(ss.getOutputStream());
-					ObjectInputStream ois = new ObjectInputStream(ss.getInputStream());
-					oos.flush();
-					String type = (String) ois.readObject();
+					response = process(request);
+				} catch (RuntimeException e) {
+					response = request.reply(Message.NOTHING);
+				} finally {
+					connection.reply(response);
+				}
+			}
 
-					if(type.equals("putd")) {
-						String dom = (String) ois.readObject();
-						String ip = (String) ois.readObject();
+			private Message process(Message request) {
+				byte type = request.getOpcode();
 
-						System.out.println("put Domain -> IP: " + dom + " -> "+ ip );
-						domain.put(dom, ip);
-					}else if(type.equals("putip")) {
+				if(type == Message.PUTD) {
+					String dom = request.getKey();
+					String ip = request.getValue();
 
-						String dom = (String) ois.readObject();
-						String ip = (String) ois.readObject();
+					System.out.println("put Domain -> IP: " + dom + " -> "+ ip );
+					return request.reply(putPrimary(request.getRing(), new Record(Record.DOMAIN, dom, ip)) ? Message.STORED : Message.NOTHING);
+				}else if(type == Message.PUTIP) {
 
-						System.out.println("put IP -> Domain: " + ip + " -> "+ dom );
+					String dom = request.getKey();
+					String ip = request.getValue();
 
-						ips.put(ip, dom);
+					System.out.println("put IP -> Domain: " + ip + " -> "+ dom );
 
+					return request.reply(putPrimary(request.getRing(), new Record(Record.IP, ip, dom)) ? Message.STORED : Message.NOTHING);
 
-					}else if(type.equals("getd")) {
-						String dom = (String) ois.readObject();
-						String ret = domain.get(dom);
+				}else if(type == Message.PUT) {
+					String dom = request.getKey();
+					String ip = request.getValue();
 
-						System.out.println("The IP of Domain: "+ dom + " is: "+ret);
-						oos.writeObject(ret);
-						oos.flush();
-					}else if(type.equals("getip")) {
-						String ip = (String) ois.readObject();
-						String ret = ips.get(ip);
+					System.out.println("put Domain <-> IP in every ring: " + dom + " <-> "+ ip );
+					return request.reply(coordinate(dom, ip) ? Message.STORED : Message.NOTHING);
 
-						System.out.println("The Domain of IP: " + ip + " is: " + ret);
-						oos.writeObject(ret);
-						oos.flush();
+				}else if(type == Message.GETD) {
+					String dom = request.getKey();
+					if (!responsible(dom, request.getRing())) {
+						return request.reply(Message.NOTHING);
 					}
+					String ret = domain.get(dom);
+
+					System.out.println("The IP of Domain: "+ dom + " is: "+ret);
+					return request.reply(Message.VALUE).withValue(ret);
+				}else if(type == Message.GETIP) {
+					String ip = request.getKey();
+					if (!responsible(ip, request.getRing())) {
+						return request.reply(Message.NOTHING);
+					}
+					String ret = ips.get(ip);
 
-					ois.close();
-					oos.close();
-					ss.close();
-
-				} catch (IOException | ClassNotFoundException e) {
+					System.out.println("The Domain of IP: " + ip + " is: " + ret);
+					return request.reply(Message.VALUE).withValue(ret);
+				}else if(type == Message.RESOLVE) {
+					if (request.getStore() < 0 || request.getStore() >= Record.STORES || request.getRing() >= numRings) {
+						return request.reply(Message.NOTHING);
+					}
+					return request.reply(Message.VALUE).withValue(resolve(request.getStore(), request.getKey(), request.getRing()));
+				}else if(type == Message.FILTER) {
+					if (request.getStore() < 0 || request.getStore() >= Record.STORES) {
+						return request.reply(Message.NOTHING);
+					}
 
-					e.printStackTrace();
+					// nothing while the filter is rebuilt or too large for one frame
+					byte[] bytes = store(request.getStore()).filterBytes();
+					if (bytes == null || bytes.length > Codec.MAX_FRAME / 2) {
+						return request.reply(Message.NOTHING);
+					}
+					return request.reply(Message.VALUE).withBytes(bytes);
+				}else if(type == Message.PULL) {
+					if (request.getStore() < 0 || request.getStore() >= Record.STORES || request.getRing() < 0 || request.getRing() >= numRings) {
+						return request.reply(Message.NOTHING);
+					}
+					return Handoff.nextChunk(request, scan(request), store(request.getStore()));
+				}else if(type == Message.PUSH) {
+					return request.reply(putAll(request.getRecords()) ? Message.STORED : Message.NOTHING);
+				}else if(type == Message.PUTBATCH) {
+					if (!putAll(request.getRecords())) {
+						return request.reply(Message.NOTHING);
+					}
+					if (request.getRing() >= 0 && request.getRing() < numRings) {
+						for (Record r : request.getRecords()) {
+							replicator.replicate(owner(r.getKey(), request.getRing()), request.getRing(), r);
+						}
+					}
+					return request.reply(Message.STORED);
+				}else if(type == Message.GETBATCH) {
+					ArrayList<Record> found = new ArrayList<Record>();
+					for (Record r : request.getRecords()) {
+						if (r.getStore() >= 0 && r.getStore() < Record.STORES) {
+							String value = store(r.getStore()).get(r.getKey());
+							if (value != null) {
+								found.add(new Record(r.getStore(), r.getKey(), value));
+							}
+						}
+					}
+					return request.reply(Message.CHUNK).withRecords(found);
 				}
+				return request.reply(Message.NOTHING);
 			}
 		}
 	}
-}
 
+	/**
+	 * Sorted keys of one range being pulled and when they were last used
+	 */
+	private static class Scan {
+
+		private final byte[][] keys;
+		private volatile long used;
+
+		Scan(byte[][] keys) {
+			this.keys = keys;
+		}
+	}
+}
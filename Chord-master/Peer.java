@@ -0,0 +1,101 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Peer class that describes a node as seen by other nodes: its socket
+ * address, the number of the virtual node on that address (0 for the node
+ * itself, see Node.setVirtualNodes()) and its identifier in every ring.
+ * The identifiers are hashed once, when the peer is first seen, and then
+ * travel with it (in the finger table, as predecessor/successor and on the
+ * wire) so no comparison has to hash the address again.
+ * Two peers are equal if their addresses and virtual node numbers are.
+ * @author Chuan Xia
+ *
+ */
+
+public class Peer {
+
+	private final InetSocketAddress address;
+	private final int vnode;
+	private final long[] ids;
+
+	/**
+	 * Constructor
+	 * @param address: peer's socket address
+	 * @param ids: peer's identifier in every ring
+	 */
+	public Peer (InetSocketAddress address, long[] ids) {
+		this(address, 0, ids);
+	}
+
+	/**
+	 * Constructor
+	 * @param address: socket address of the peer's host
+	 * @param vnode: virtual node number on the host
+	 * @param ids: peer's identifier in every ring
+	 */
+	public Peer (InetSocketAddress address, int vnode, long[] ids) {
+		this.address = address;
+		this.vnode = vnode;
+		this.ids = ids;
+	}
+
+	/**
+	 * Describe a node by its address, hashing its identifier in every ring
+	 * @param address
+	 * @return peer, null if address is null
+	 */
+	public static Peer of (InetSocketAddress address) {
+		if (address == null) {
+			return null;
+		}
+		long[] ids = new long[Helper.getNumRings()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Helper.hashSocketAddress(address, i);
+		}
+		return new Peer(address, ids);
+	}
+
+	public InetSocketAddress getAddress () {
+		return address;
+	}
+
+	public int getVnode () {
+		return vnode;
+	}
+
+	/**
+	 * Identifier in a ring
+	 * @param ring_nr
+	 * @return identifier
+	 */
+	public long getId (int ring_nr) {
+		if (ring_nr < ids.length) {
+			return ids[ring_nr];
+		}
+		// sent by a node that knows fewer rings
+		return Helper.hashSocketAddress(address, vnode, ring_nr);
+	}
+
+	/**
+	 * Number of rings the identifiers cover
+	 * @return count
+	 */
+	public int getRings () {
+		return ids.length;
+	}
+
+	@Override
+	public boolean equals (Object o) {
+		return o instanceof Peer && address.equals(((Peer) o).address) && vnode == ((Peer) o).vnode;
+	}
+
+	@Override
+	public int hashCode () {
+		return 31 * address.hashCode() + vnode;
+	}
+
+	@Override
+	public String toString () {
+		return vnode == 0 ? address.toString() : address.toString() + "#" + vnode;
+	}
+}
@@ -0,0 +1,226 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read cache that keeps records a node has resolved on behalf of clients
+ * (see Message.RESOLVE), so popular names are answered without reaching
+ * the node responsible for them. Entries expire after a TTL.
+ *
+ * Admission and eviction follow W-TinyLFU: new entries go to a small LRU
+ * window (1% of the capacity); an entry evicted from the window only
+ * enters the main LRU if it has been asked for more often than the
+ * main LRU's own eviction candidate. Frequencies are estimated by a
+ * count-min sketch of 4-bit counters that are halved every 10 * capacity
+ * accesses, so one burst does not keep a name cached forever.
+ * @author Chuan Xia
+ *
+ */
+
+public class ReadCache {
+
+	private final long ttlMillis;
+	private final LinkedHashMap<String, Entry> window;
+	private final LinkedHashMap<String, Entry> main;
+	private final int windowCapacity;
+	private final int mainCapacity;
+	private final Sketch sketch;
+
+	// statistics, see summary()
+	private long hits;
+	private long misses;
+	private long admitted;
+	private long rejected;
+	private long evictions;
+	private long expirations;
+
+	/**
+	 * Constructor
+	 * @param capacity: maximum number of entries, at least 2 (one in the
+	 * window, one in the main LRU)
+	 * @param ttlMillis: how long an entry is served
+	 */
+	public ReadCache (int capacity, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		windowCapacity = Math.max(1, capacity / 100);
+		mainCapacity = Math.max(1, capacity - windowCapacity);
+		window = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		main = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		sketch = new Sketch(capacity);
+	}
+
+	/**
+	 * Look a record up, counting the access for admission
+	 * @param store: Record.DOMAIN or Record.IP
+	 * @param key
+	 * @return value, null if not cached or expired
+	 */
+	public synchronized String get (int store, String key) {
+		String k = store + "/" + key;
+		sketch.increment(k);
+		Entry e = window.get(k);
+		if (e == null) {
+			e = main.get(k);
+		}
+		if (e != null && System.currentTimeMillis() > e.expires) {
+			window.remove(k);
+			main.remove(k);
+			expirations++;
+			e = null;
+		}
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.value;
+	}
+
+	/**
+	 * Cache a resolved record
+	 * @param store
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put (int store, String key, String value) {
+		String k = store + "/" + key;
+		Entry e = new Entry(value, System.currentTimeMillis() + ttlMillis);
+		if (main.containsKey(k)) {
+			main.put(k, e);
+			return;
+		}
+		window.put(k, e);
+		if (window.size() <= windowCapacity) {
+			return;
+		}
+
+		// the window's LRU entry competes with the main LRU's
+		Iterator<Map.Entry<String, Entry>> it = window.entrySet().iterator();
+		Map.Entry<String, Entry> candidate = it.next();
+		it.remove();
+		if (main.size() < mainCapacity || main.isEmpty()) {
+			main.put(candidate.getKey(), candidate.getValue());
+			admitted++;
+			return;
+		}
+		Iterator<Map.Entry<String, Entry>> victims = main.entrySet().iterator();
+		Map.Entry<String, Entry> victim = victims.next();
+		if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+			victims.remove();
+			main.put(candidate.getKey(), candidate.getValue());
+			admitted++;
+		}
+		else {
+			rejected++;
+		}
+		evictions++;
+	}
+
+	/**
+	 * Drop a record, e.g. when this node has written a new value
+	 * @param store
+	 * @param key
+	 */
+	public synchronized void invalidate (int store, String key) {
+		String k = store + "/" + key;
+		window.remove(k);
+		main.remove(k);
+	}
+
+	/**
+	 * Print-ready statistics
+	 * @return e.g. "read cache: entries=10, hits=90 (90.0%), misses=10, ..."
+	 */
+	public synchronized String summary () {
+		long n = hits + misses;
+		return String.format("read cache: entries=%d, hits=%d (%.1f%%), misses=%d, admitted=%d, rejected=%d, evictions=%d, expired=%d",
+				window.size() + main.size(), hits, n == 0 ? 0.0 : 100.0 * hits / n, misses, admitted, rejected, evictions, expirations);
+	}
+
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	private static class Entry {
+
+		private final String value;
+		private final long expires;
+
+		Entry (String value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 rows of 4-bit counters, two per byte
+	 */
+	private static class Sketch {
+
+		private static final int ROWS = 4;
+		private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		Sketch (int capacity) {
+			int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+			table = new byte[ROWS][width / 2];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(1, capacity);
+		}
+
+		void increment (String key) {
+			int h = key.hashCode();
+			for (int r = 0; r < ROWS; r++) {
+				int i = index(h, r);
+				int c = get(r, i);
+				if (c < 15) {
+					set(r, i, c + 1);
+				}
+			}
+			if (++additions >= sampleSize) {
+				halve();
+			}
+		}
+
+		int frequency (String key) {
+			int h = key.hashCode();
+			int min = 15;
+			for (int r = 0; r < ROWS; r++) {
+				min = Math.min(min, get(r, index(h, r)));
+			}
+			return min;
+		}
+
+		private int index (int h, int r) {
+			h *= SEEDS[r];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private int get (int r, int i) {
+			return (table[r][i >>> 1] >>> ((i & 1) << 2)) & 0xF;
+		}
+
+		private void set (int r, int i, int c) {
+			int shift = (i & 1) << 2;
+			table[r][i >>> 1] = (byte) ((table[r][i >>> 1] & ~(0xF << shift)) | (c << shift));
+		}
+
+		// aging: halve every counter
+		private void halve () {
+			for (byte[] row : table) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) ((row[i] >>> 1) & 0x77);
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Record class, one stored mapping as it travels between nodes when keys
+ * are handed over: which of the node's stores it belongs to, its key and
+ * its value.
+ * @author Chuan Xia
+ *
+ */
+
+public class Record {
+
+	// stores of a node, see Node
+	public static final int DOMAIN = 0;
+	public static final int IP = 1;
+	public static final int STORES = 2;
+
+	private final int store;
+	private final String key;
+	private final String value;
+
+	public Record (int store, String key, String value) {
+		this.store = store;
+		this.key = key;
+		this.value = value;
+	}
+
+	public int getStore () {
+		return store;
+	}
+
+	public String getKey () {
+		return key;
+	}
+
+	public String getValue () {
+		return value;
+	}
+}
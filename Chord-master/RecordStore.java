@@ -0,0 +1,486 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Record store that keeps one kind of a node's records (domain -> IP or
+ * IP -> domain). It is safe to use from many request handlers at once and
+ * keeps records compact: keys and values are stored as UTF-8 byte arrays
+ * in open addressing tables (no entry or String objects per record).
+ * The records are split over STRIPES independent tables by key hash,
+ * each guarded by its own lock, so handlers working on different stripes
+ * never wait for each other.
+ *
+ * With persistence (see WriteAheadLog) those tables are only the memory
+ * layer of the store: from time to time the layer is frozen and flushed
+ * into a memory-mapped Segment, and lookups go through the memory layer,
+ * the frozen layer being flushed and then the segments, newest first.
+ *
+ * A BloomFilter over all keys is checked before any of them, so looking
+ * up a missing key usually touches no table and no segment. The filter
+ * is rebuilt four times larger in the background when it fills up.
+ * @author Chuan Xia
+ *
+ */
+
+public class RecordStore {
+
+	public static final int STRIPES = 64;
+
+	// keys the first filter is sized for, see setFilterCapacity()
+	public static final int FILTER_CAPACITY = 1 << 16;
+	private static volatile int filterCapacity = FILTER_CAPACITY;
+	// filters stop growing at this size, they only get less precise
+	public static final int MAX_FILTER_CAPACITY = 1 << 24;
+
+	// JVM overheads used by memoryBytes(), assuming compressed references
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+
+	private final String name;
+	private volatile Stripe[] stripes;
+	private volatile Stripe[] frozen;
+	private volatile Segment[] segments = new Segment[0];
+
+	// null while the filter is rebuilt from scratch: every key might be stored
+	private volatile BloomFilter filter = new BloomFilter(filterCapacity);
+	// the filter being built, keys added meanwhile go to both
+	private volatile BloomFilter next;
+	private final AtomicBoolean building = new AtomicBoolean();
+	private final AtomicLong negatives = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param name: kind of records, used when printing
+	 */
+	public RecordStore (String name) {
+		this.name = name;
+		stripes = newStripes();
+	}
+
+	/**
+	 * Size the first filter of stores created after this call, e.g. small
+	 * for many nodes with few records each in one JVM
+	 * @param keys: at least 1
+	 */
+	public static void setFilterCapacity (int keys) {
+		filterCapacity = Math.max(1, Math.min(keys, MAX_FILTER_CAPACITY));
+	}
+
+	/**
+	 * Store a record, replacing the old value of key if any
+	 * @param key
+	 * @param value
+	 */
+	public void put (String key, String value) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(k);
+		stripes[stripe(hash)].put(k, hash, value.getBytes(StandardCharsets.UTF_8));
+		remember(k);
+	}
+
+	/**
+	 * Store a record already encoded as UTF-8, e.g. one read back from disk
+	 * @param key
+	 * @param value
+	 */
+	void putBytes (byte[] key, byte[] value) {
+		int hash = hash(key);
+		stripes[stripe(hash)].put(key, hash, value);
+		remember(key);
+	}
+
+	/**
+	 * Look a record up
+	 * @param key
+	 * @return value, null if key is not stored
+	 */
+	public String get (String key) {
+		byte[] v = getBytes(key.getBytes(StandardCharsets.UTF_8));
+		return v == null ? null : new String(v, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Look a record up by its UTF-8 key
+	 * @param key
+	 * @return value bytes, null if key is not stored
+	 */
+	byte[] getBytes (byte[] key) {
+		BloomFilter keys = filter;
+		if (keys != null && !keys.mightContain(key)) {
+			negatives.incrementAndGet();
+			return null;
+		}
+		int hash = hash(key);
+		byte[] v = stripes[stripe(hash)].get(key, hash);
+		if (v != null) {
+			return v;
+		}
+		Stripe[] f = frozen;
+		if (f != null && (v = f[stripe(hash)].get(key, hash)) != null) {
+			return v;
+		}
+		for (Segment segment : segments) {
+			if ((v = segment.get(key)) != null) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Visit every record of every layer and segment. A key stored in more
+	 * than one of them is visited once per copy, so callers that need the
+	 * current value look the key up again. Memory stripes are copied under
+	 * their lock and visited after, so writers are not held up by a slow
+	 * visitor. The arrays must not be modified.
+	 * @param visitor
+	 */
+	public void forEach (Visitor visitor) {
+		for (Stripe[] layer : new Stripe[][] {stripes, frozen}) {
+			if (layer == null) {
+				continue;
+			}
+			for (Stripe s : layer) {
+				byte[][] keys;
+				byte[][] values;
+				synchronized (s) {
+					keys = s.keys.clone();
+					values = s.values.clone();
+				}
+				for (int i = 0; i < keys.length; i++) {
+					if (keys[i] != null) {
+						visitor.visit(keys[i], values[i]);
+					}
+				}
+			}
+		}
+		for (Segment segment : segments) {
+			segment.forEach(visitor);
+		}
+	}
+
+	/**
+	 * Copy of the filter for other nodes and clients
+	 * @return filter bytes, null while the filter is rebuilt from scratch
+	 */
+	public byte[] filterBytes () {
+		BloomFilter f = filter;
+		return f == null ? null : f.toBytes();
+	}
+
+	/**
+	 * Rebuild the filter from every layer and segment in the background,
+	 * e.g. after segments were opened whose keys it does not have.
+	 * Lookups skip the filter until it is rebuilt.
+	 */
+	void rebuildFilter () {
+		filter = null;
+		if (building.compareAndSet(false, true)) {
+			Threads.newFactory("filter-" + name).newThread(new Runnable() {
+				public void run() {
+					buildFilter(filterCapacity);
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Add a key that was just stored to the filters; start a larger filter
+	 * once the current one is full
+	 */
+	private void remember (byte[] key) {
+		// next before filter: buildFilter() publishes the new filter before
+		// it clears next, so a key forEach() has passed reaches the new
+		// filter either as next or, once next is cleared, as filter
+		BloomFilter n = next;
+		if (n != null) {
+			n.add(key);
+		}
+		BloomFilter f = filter;
+		if (f != null) {
+			f.add(key);
+		}
+		if (f != null && f.getAdded() > f.getCapacity() && f.getCapacity() < MAX_FILTER_CAPACITY && building.compareAndSet(false, true)) {
+			final int capacity = f.getCapacity() * 4;
+			Threads.newFactory("filter-" + name).newThread(new Runnable() {
+				public void run() {
+					buildFilter(capacity);
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Build a filter of every key and serve it, the caller has set
+	 * building. Keys stored while it is built reach it through remember():
+	 * they are stored before next is read, so a key is either seen by
+	 * forEach() or added by its put.
+	 */
+	private void buildFilter (int capacity) {
+		try {
+			while (true) {
+				final BloomFilter n = new BloomFilter(capacity);
+				next = n;
+				forEach(new Visitor() {
+					public void visit(byte[] key, byte[] value) {
+						n.add(key);
+					}
+				});
+				filter = n;
+				next = null;
+
+				// already full, e.g. after recovery: build a larger one right away
+				if (n.getAdded() <= capacity || capacity >= MAX_FILTER_CAPACITY) {
+					return;
+				}
+				capacity = Math.min(MAX_FILTER_CAPACITY, capacity * 4);
+			}
+		} finally {
+			building.set(false);
+		}
+	}
+
+	/**
+	 * Receives the records of forEach()
+	 */
+	public interface Visitor {
+		void visit (byte[] key, byte[] value);
+	}
+
+	/**
+	 * Start a new memory layer; the current one is frozen until it has been
+	 * flushed with flushFrozen(). Callers must make sure no put is running
+	 * at the same time (WriteAheadLog freezes while holding its lock).
+	 */
+	void freeze () {
+		frozen = stripes;
+		stripes = newStripes();
+	}
+
+	/**
+	 * Write the frozen layer in key order and, once written, serve it from
+	 * the segment instead of from memory
+	 * @param out: writer of the new segment, finished by this method
+	 * @param file: the new segment's file
+	 * @param epoch: see Segment
+	 * @throws IOException
+	 */
+	void flushFrozen (Segment.Writer out, File file, long epoch) throws IOException {
+		Stripe[] f = frozen;
+		int n = 0;
+		for (Stripe s : f) {
+			n += s.size;
+		}
+		byte[][] keys = new byte[n][];
+		int i = 0;
+		for (Stripe s : f) {
+			for (int j = 0; j < s.keys.length; j++) {
+				if (s.keys[j] != null) {
+					keys[i++] = s.keys[j];
+				}
+			}
+		}
+		Arrays.sort(keys, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				return Segment.compare(a, b);
+			}
+		});
+		for (byte[] k : keys) {
+			int hash = hash(k);
+			out.add(k, f[stripe(hash)].get(k, hash));
+		}
+		out.finish();
+		addSegment(Segment.open(file, epoch, 0));
+		frozen = null;
+	}
+
+	/**
+	 * Serve a segment, in front of the older ones
+	 * @param segment
+	 */
+	synchronized void addSegment (Segment segment) {
+		Segment[] next = new Segment[segments.length + 1];
+		next[0] = segment;
+		System.arraycopy(segments, 0, next, 1, segments.length);
+		segments = next;
+	}
+
+	/**
+	 * Replace the segments merged into one by the merged segment
+	 * @param merged: segments that were merged, the oldest ones served
+	 * @param segment: the merged segment
+	 */
+	synchronized void replaceSegments (Segment[] merged, Segment segment) {
+		Segment[] current = segments;
+		Segment[] next = new Segment[current.length - merged.length + 1];
+		int n = 0;
+		for (Segment s : current) {
+			if (!Arrays.asList(merged).contains(s)) {
+				next[n++] = s;
+			}
+		}
+		next[n] = segment;
+		segments = next;
+	}
+
+	/**
+	 * Segments served, newest first
+	 * @return segments, must not be modified
+	 */
+	Segment[] getSegments () {
+		return segments;
+	}
+
+	/**
+	 * Number of records stored; a key stored in more than one layer or
+	 * segment is counted once per copy until the segments are merged
+	 * @return count
+	 */
+	public long size () {
+		long n = 0;
+		for (Stripe[] layer : new Stripe[][] {stripes, frozen}) {
+			if (layer != null) {
+				for (Stripe s : layer) {
+					synchronized (s) {
+						n += s.size;
+					}
+				}
+			}
+		}
+		for (Segment segment : segments) {
+			n += segment.getCount();
+		}
+		return n;
+	}
+
+	/**
+	 * Approximate heap used by the memory layers and the tables holding them
+	 * @return bytes
+	 */
+	public long memoryBytes () {
+		long n = 0;
+		for (Stripe[] layer : new Stripe[][] {stripes, frozen}) {
+			if (layer != null) {
+				for (Stripe s : layer) {
+					synchronized (s) {
+						n += s.bytes + 2 * arrayBytes(REFERENCE * s.keys.length);
+					}
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Size of the segment files, mapped but only paged in when read
+	 * @return bytes
+	 */
+	public long mappedBytes () {
+		long n = 0;
+		for (Segment segment : segments) {
+			n += segment.getLength();
+		}
+		return n;
+	}
+
+	/**
+	 * Print-ready statistics of this store
+	 * @return e.g. "domain records: n=1000 memory=64.2KB"
+	 */
+	public String summary () {
+		long n = size();
+		long bytes = memoryBytes();
+		String ret = String.format("%s records: n=%d memory=%.1fKB", name, n, bytes / 1024.0);
+		BloomFilter f = filter;
+		ret += f == null ? " filter=rebuilding" : String.format(" filter=%.1fKB negatives=%d", f.getBytes() / 1024.0, negatives.get());
+		if (segments.length > 0) {
+			ret += String.format(" segments=%d mapped=%.1fKB", segments.length, mappedBytes() / 1024.0);
+		}
+		return ret;
+	}
+
+	private static Stripe[] newStripes () {
+		Stripe[] ret = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			ret[i] = new Stripe();
+		}
+		return ret;
+	}
+
+	private static int stripe (int hash) {
+		return (hash >>> 26) % STRIPES;
+	}
+
+	private static int hash (byte[] key) {
+		int h = Arrays.hashCode(key);
+		return h ^ (h >>> 16) ^ (h << 7);
+	}
+
+	private static long arrayBytes (int length) {
+		return (ARRAY_HEADER + length + 7) & ~7L;
+	}
+
+	/**
+	 * One open addressing table with linear probing. keys[i] == null marks
+	 * a free slot; the table is grown before it gets 3/4 full.
+	 */
+	private static class Stripe {
+
+		private byte[][] keys = new byte[16][];
+		private byte[][] values = new byte[16][];
+		private int size;
+		private long bytes;
+
+		synchronized byte[] get (byte[] key, int hash) {
+			int mask = keys.length - 1;
+			for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+				if (Arrays.equals(keys[i], key)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		synchronized void put (byte[] key, int hash, byte[] value) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; keys[i] != null; i = (i + 1) & mask) {
+				if (Arrays.equals(keys[i], key)) {
+					bytes += arrayBytes(value.length) - arrayBytes(values[i].length);
+					values[i] = value;
+					return;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+			bytes += arrayBytes(key.length) + arrayBytes(value.length);
+			if (size * 4 >= keys.length * 3) {
+				grow();
+			}
+		}
+
+		private void grow () {
+			byte[][] oldKeys = keys;
+			byte[][] oldValues = values;
+			keys = new byte[oldKeys.length * 2][];
+			values = new byte[oldKeys.length * 2][];
+			int mask = keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != null) {
+					int i = hash(oldKeys[j]) & mask;
+					while (keys[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+	}
+}
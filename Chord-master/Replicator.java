@@ -0,0 +1,217 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replicator thread that copies the records a node is responsible for to
+ * its successors. Puts only queue their record here and are answered
+ * right away; the thread sends the queued records in batches, one PUSH
+ * per successor and ring, to the first Helper.getReplicas() other nodes
+ * of the ring's successor list (of the virtual node responsible for the
+ * record, if the node has virtual nodes).
+ *
+ * A successor that newly enters that part of the list gets every record
+ * of the node's range in the ring (see Handoff.push), and so does every
+ * successor of a ring whose queue overflowed, so replicas catch up after
+ * churn and overload.
+ * @author Chuan Xia
+ *
+ */
+
+public class Replicator implements Runnable {
+
+	// records waiting to be copied before new ones trigger a full resync
+	private static final int CAPACITY = 65536;
+
+	private final Node local;
+	private final LinkedBlockingQueue<Copy> queue = new LinkedBlockingQueue<Copy>(CAPACITY);
+	private final boolean[] overflowed;
+	private Thread thread;
+
+	// statistics, see summary()
+	private final AtomicLong copied = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong resynced = new AtomicLong();
+
+	public Replicator (Node _local) {
+		local = _local;
+		overflowed = new boolean[local.getNumRings()];
+	}
+
+	public void start () {
+		thread = Threads.newFactory("replicator-" + local.getAddress().getPort()).newThread(this);
+		thread.start();
+	}
+
+	public void stop () {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Queue a record the node is responsible for in a ring
+	 * @param member: the node or its virtual node responsible for the record
+	 * @param ring_nr
+	 * @param record
+	 */
+	public void replicate (Node member, int ring_nr, Record record) {
+		if (Helper.getReplicas() == 0) {
+			return;
+		}
+		if (!queue.offer(new Copy(member, ring_nr, record, null))) {
+			synchronized (overflowed) {
+				overflowed[ring_nr] = true;
+			}
+		}
+	}
+
+	/**
+	 * Queue a full copy of a member's range in a ring to a successor
+	 * @param member: the node or one of its virtual nodes
+	 * @param ring_nr
+	 * @param successor
+	 */
+	public void resync (Node member, int ring_nr, Peer successor) {
+		if (!queue.offer(new Copy(member, ring_nr, null, successor))) {
+			synchronized (overflowed) {
+				overflowed[ring_nr] = true;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Copy> batch = new ArrayList<Copy>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, Handoff.CHUNK_RECORDS - 1);
+				send(batch);
+				batch.clear();
+
+				// the records dropped on overflow are sent with the whole range
+				for (int r = 0; r < overflowed.length; r++) {
+					boolean resync;
+					synchronized (overflowed) {
+						resync = overflowed[r];
+						overflowed[r] = false;
+					}
+					if (resync) {
+						for (Node member : local.getMembers()) {
+							for (Peer successor : replicas(local.getAddress(), member.getSuccessors(r))) {
+								pushRange(member, r, successor);
+							}
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// node is leaving
+		}
+	}
+
+	/**
+	 * Print-ready statistics
+	 * @return e.g. "replication: records copied=10, failed=0, resyncs=1"
+	 */
+	public String summary () {
+		return "replication: records copied="+copied.get()+", failed="+failed.get()+", resyncs="+resynced.get();
+	}
+
+	/**
+	 * The replicas of a range: the first Helper.getReplicas() nodes other
+	 * than host in a successor list, one per node
+	 * @param host: address of the node owning the range
+	 * @param successors
+	 * @return replicas, nearest first
+	 */
+	public static List<Peer> replicas (InetSocketAddress host, List<Peer> successors) {
+		ArrayList<Peer> ret = new ArrayList<Peer>();
+		for (Peer p : successors) {
+			if (ret.size() == Helper.getReplicas()) {
+				break;
+			}
+			if (!p.getAddress().equals(host) && !onHost(ret, p.getAddress())) {
+				ret.add(p);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Check if one of the peers runs on a node
+	 * @param peers
+	 * @param host: the node's address
+	 * @return true if a peer has that address
+	 */
+	public static boolean onHost (List<Peer> peers, InetSocketAddress host) {
+		for (Peer p : peers) {
+			if (p.getAddress().equals(host)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void send (List<Copy> batch) {
+		for (int r = 0; r < local.getNumRings(); r++) {
+			for (Node member : local.getMembers()) {
+				send(batch, member, r);
+			}
+		}
+		for (Copy c : batch) {
+			if (c.successor != null) {
+				pushRange(c.member, c.ring, c.successor);
+			}
+		}
+	}
+
+	private void send (List<Copy> batch, Node member, int r) {
+		ArrayList<Record> records = new ArrayList<Record>();
+		for (Copy c : batch) {
+			if (c.ring == r && c.member == member && c.record != null) {
+				records.add(c.record);
+			}
+		}
+		if (!records.isEmpty()) {
+			for (Peer successor : replicas(local.getAddress(), member.getSuccessors(r))) {
+				Message response = Helper.sendRequest(Helper.dataAddress(successor.getAddress()), new Message(Message.PUSH, r).withRecords(records));
+				if (response != null && response.getOpcode() == Message.STORED) {
+					copied.addAndGet(records.size());
+				}
+				else {
+					failed.addAndGet(records.size());
+				}
+			}
+		}
+	}
+
+	private void pushRange (Node member, int ring_nr, Peer successor) {
+		Peer pre = member.getPredecessor(ring_nr);
+		long self = member.getPeer().getId(ring_nr);
+		long from = pre == null || pre.equals(member.getPeer()) ? self : pre.getId(ring_nr);
+		copied.addAndGet(Handoff.push(local, successor, ring_nr, from, self));
+		resynced.incrementAndGet();
+	}
+
+	/**
+	 * One record to copy, or (record == null) a successor to resync
+	 */
+	private static class Copy {
+
+		private final Node member;
+		private final int ring;
+		private final Record record;
+		private final Peer successor;
+
+		Copy (Node member, int ring, Record record, Peer successor) {
+			this.member = member;
+			this.ring = ring;
+			this.record = record;
+			this.successor = successor;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Route cache that lets a client send a request straight to the node
+ * responsible for a key instead of asking the contact node to route it.
+ * The members of a ring are learned by walking it along the successor
+ * lists (SUCCLIST, up to Helper.getReplicas() nodes per request) and are
+ * kept for a TTL. A node that answers it is not responsible (or does not
+ * answer) makes the client drop the ring's members, which are then
+ * learned again on the next lookup.
+ * @author Chuan Xia
+ *
+ */
+
+public class RouteCache {
+
+	// walks stop after this many nodes, larger rings are routed as usual
+	public static final int MAX_NODES = 4096;
+
+	private final Peer contact;
+	private final long ttlMillis;
+	private final AtomicReferenceArray<Members> rings;
+
+	// statistics, see summary()
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param contact: node the walks start at
+	 * @param ttlMillis: how long the members of a ring are used
+	 */
+	public RouteCache (Peer contact, long ttlMillis) {
+		this.contact = contact;
+		this.ttlMillis = ttlMillis;
+		rings = new AtomicReferenceArray<Members>(Helper.getNumRings());
+	}
+
+	/**
+	 * Node responsible for an identifier in a ring, by the cached members
+	 * @param id
+	 * @param ring_nr
+	 * @return node, null if the ring's members cannot be learned
+	 */
+	public Peer owner (long id, int ring_nr) {
+		Members m = rings.get(ring_nr);
+		if (m == null || System.currentTimeMillis() - m.loaded > ttlMillis) {
+			m = walk(ring_nr);
+			if (m == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			rings.set(ring_nr, m);
+		}
+		hits.incrementAndGet();
+
+		// first node at or after id, the first node of the ring if none
+		int i = Arrays.binarySearch(m.ids, id);
+		i = i >= 0 ? i : -i - 1;
+		return m.peers[i == m.ids.length ? 0 : i];
+	}
+
+	/**
+	 * Drop the members of a ring, e.g. after its cached owner redirected
+	 * @param ring_nr
+	 */
+	public void invalidate (int ring_nr) {
+		rings.set(ring_nr, null);
+	}
+
+	/**
+	 * Print-ready statistics
+	 * @return e.g. "route cache: hits=10, misses=0"
+	 */
+	public String summary () {
+		return "route cache: hits="+hits.get()+", misses="+misses.get();
+	}
+
+	/**
+	 * Learn the members of a ring, walking from the successor of id 0
+	 * @param ring_nr
+	 * @return members, null if a node on the way cannot be reached
+	 */
+	private Members walk (final int ring_nr) {
+		Peer first = Helper.requestPeer(contact, new Message(Message.FINDSUCC, ring_nr).withId(0));
+		if (first == null) {
+			return null;
+		}
+		ArrayList<Peer> members = new ArrayList<Peer>();
+		HashSet<Peer> seen = new HashSet<Peer>();
+		members.add(first);
+		seen.add(first);
+		Peer p = first;
+		while (members.size() < MAX_NODES) {
+			List<Peer> successors = Helper.requestSuccessors(p, ring_nr);
+			if (successors == null) {
+				return null;
+			}
+
+			// a node alone in the ring has no successors
+			if (successors.isEmpty()) {
+				break;
+			}
+			boolean wrapped = false;
+			for (Peer s : successors) {
+				if (s.equals(first)) {
+					wrapped = true;
+					break;
+				}
+
+				// a loop that misses the first node, the ring is not stable
+				if (!seen.add(s)) {
+					return null;
+				}
+				members.add(s);
+			}
+			if (wrapped) {
+				break;
+			}
+			p = members.get(members.size() - 1);
+		}
+		if (members.size() >= MAX_NODES) {
+			return null;
+		}
+
+		Members ret = new Members(members.size());
+		for (int i = 0; i < members.size(); i++) {
+			ret.peers[i] = members.get(i);
+		}
+		Arrays.sort(ret.peers, new Comparator<Peer>() {
+			public int compare(Peer a, Peer b) {
+				return Long.compare(a.getId(ring_nr), b.getId(ring_nr));
+			}
+		});
+		for (int i = 0; i < ret.peers.length; i++) {
+			ret.ids[i] = ret.peers[i].getId(ring_nr);
+		}
+		return ret;
+	}
+
+	/**
+	 * The members of one ring sorted by identifier and when they were learned
+	 */
+	private static class Members {
+
+		private final long[] ids;
+		private final Peer[] peers;
+		private final long loaded = System.currentTimeMillis();
+
+		Members (int n) {
+			ids = new long[n];
+			peers = new Peer[n];
+		}
+	}
+}
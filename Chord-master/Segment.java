@@ -0,0 +1,351 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.PriorityQueue;
+
+/**
+ * Segment class, an immutable file of records sorted by key. A segment is
+ * memory-mapped when opened and searched in place, so opening one takes
+ * the same time whatever its size and only the pages a lookup touches are
+ * read from disk. Layout:
+ *
+ * 	records  unsigned short key length, key, unsigned short value length,
+ * 	         value; in key order (unsigned bytes), never across a 1GB
+ * 	         boundary so each record lies in one mapped chunk
+ * 	index    long offset of every record, in key order
+ * 	footer   long index offset, long record count, int magic
+ *
+ * @author Chuan Xia
+ *
+ */
+
+public class Segment {
+
+	private static final int MAGIC = 0x43485347;
+	private static final int FOOTER = 8 + 8 + 4;
+
+	// files are mapped in chunks of 1GB, a single mapping cannot exceed 2GB
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK = 1L << CHUNK_BITS;
+
+	private final File file;
+	private final long epoch;
+	private final int level;
+	private final MappedByteBuffer[] chunks;
+	private final long indexOffset;
+	private final long count;
+	private final long length;
+
+	private Segment (File file, long epoch, int level, MappedByteBuffer[] chunks, long indexOffset, long count, long length) {
+		this.file = file;
+		this.epoch = epoch;
+		this.level = level;
+		this.chunks = chunks;
+		this.indexOffset = indexOffset;
+		this.count = count;
+		this.length = length;
+	}
+
+	/**
+	 * Map a segment file
+	 * @param file
+	 * @param epoch: newest log epoch the segment covers (see WriteAheadLog)
+	 * @param level: 0 if flushed from memory, n + 1 if merged from segments of level up to n
+	 * @return segment
+	 * @throws IOException if the file cannot be mapped or is not a segment
+	 */
+	public static Segment open (File file, long epoch, int level) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < FOOTER) {
+				throw new IOException(file + " is not a segment");
+			}
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+			while (footer.hasRemaining()) {
+				if (channel.read(footer, size - FOOTER + footer.position()) < 0) {
+					throw new IOException(file + " is truncated");
+				}
+			}
+			footer.flip();
+			long indexOffset = footer.getLong();
+			long count = footer.getLong();
+			if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset + 8 * count != size - FOOTER) {
+				throw new IOException(file + " is not a segment");
+			}
+
+			// the mappings stay valid after the channel is closed
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) >>> CHUNK_BITS)];
+			for (int i = 0; i < chunks.length; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK, size - start));
+			}
+			return new Segment(file, epoch, level, chunks, indexOffset, count, size);
+		}
+	}
+
+	/**
+	 * Look a key up by binary search over the index
+	 * @param key: UTF-8 bytes
+	 * @return value bytes, null if the segment does not have key
+	 */
+	public byte[] get (byte[] key) {
+		long lo = 0;
+		long hi = count - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long offset = offset(mid);
+			int cmp = compareKey(offset, key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			}
+			else if (cmp > 0) {
+				hi = mid - 1;
+			}
+			else {
+				return value(offset);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Visit every record in key order
+	 * @param visitor
+	 */
+	public void forEach (RecordStore.Visitor visitor) {
+		for (long i = 0; i < count; i++) {
+			long offset = offset(i);
+			visitor.visit(key(offset), value(offset));
+		}
+	}
+
+	/**
+	 * Getters
+	 * @return the variable caller wants
+	 */
+
+	public File getFile () {
+		return file;
+	}
+
+	public long getEpoch () {
+		return epoch;
+	}
+
+	public int getLevel () {
+		return level;
+	}
+
+	public long getCount () {
+		return count;
+	}
+
+	public long getLength () {
+		return length;
+	}
+
+	/**
+	 * Compare two keys as unsigned bytes, the order of records in a segment
+	 * @param a
+	 * @param b
+	 * @return negative, zero or positive as a is before, equal to or after b
+	 */
+	public static int compare (byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Merge segments into one, the newest segment's value wins for a key
+	 * found in several
+	 * @param newestFirst: segments to merge
+	 * @param out: writer of the merged segment, not finished by this method
+	 * @throws IOException
+	 */
+	public static void merge (Segment[] newestFirst, Writer out) throws IOException {
+		PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+		for (int i = 0; i < newestFirst.length; i++) {
+			Cursor c = new Cursor(newestFirst[i], i);
+			if (c.next()) {
+				cursors.add(c);
+			}
+		}
+		while (!cursors.isEmpty()) {
+			Cursor top = cursors.poll();
+			out.add(top.key, top.value);
+
+			// older copies of the same key are dropped
+			while (!cursors.isEmpty() && compare(cursors.peek().key, top.key) == 0) {
+				Cursor older = cursors.poll();
+				if (older.next()) {
+					cursors.add(older);
+				}
+			}
+			if (top.next()) {
+				cursors.add(top);
+			}
+		}
+	}
+
+	private long offset (long i) {
+		long position = indexOffset + 8 * i;
+		return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & (CHUNK - 1)));
+	}
+
+	private int compareKey (long offset, byte[] key) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		int p = (int) (offset & (CHUNK - 1));
+		int klen = chunk.getShort(p) & 0xFFFF;
+		int n = Math.min(klen, key.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (chunk.get(p + 2 + i) & 0xFF) - (key[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return klen - key.length;
+	}
+
+	private byte[] key (long offset) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		int p = (int) (offset & (CHUNK - 1));
+		byte[] k = new byte[chunk.getShort(p) & 0xFFFF];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = chunk.get(p + 2 + i);
+		}
+		return k;
+	}
+
+	private byte[] value (long offset) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		int p = (int) (offset & (CHUNK - 1));
+		p += 2 + (chunk.getShort(p) & 0xFFFF);
+		byte[] v = new byte[chunk.getShort(p) & 0xFFFF];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = chunk.get(p + 2 + i);
+		}
+		return v;
+	}
+
+	/**
+	 * Walks one segment in key order during a merge
+	 */
+	private static class Cursor implements Comparable<Cursor> {
+
+		private final Segment segment;
+		private final int age;
+		private long i = -1;
+		private byte[] key;
+		private byte[] value;
+
+		Cursor (Segment segment, int age) {
+			this.segment = segment;
+			this.age = age;
+		}
+
+		boolean next () {
+			if (++i >= segment.count) {
+				return false;
+			}
+			long offset = segment.offset(i);
+			key = segment.key(offset);
+			value = segment.value(offset);
+			return true;
+		}
+
+		// smallest key first, for equal keys the newest segment first
+		public int compareTo (Cursor o) {
+			int cmp = compare(key, o.key);
+			return cmp != 0 ? cmp : age - o.age;
+		}
+	}
+
+	/**
+	 * Writes a new segment file; records must be added in key order
+	 */
+	public static class Writer {
+
+		private final FileOutputStream file;
+		private final DataOutputStream out;
+		private long position;
+		private long[] offsets = new long[1024];
+		private long count;
+
+		public Writer (File f) throws IOException {
+			file = new FileOutputStream(f);
+			out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+		}
+
+		public void add (byte[] key, byte[] value) throws IOException {
+			int length = 2 + key.length + 2 + value.length;
+
+			// start the next chunk rather than crossing into it
+			long left = CHUNK - (position & (CHUNK - 1));
+			if (length > left) {
+				pad(left);
+			}
+			if (count == offsets.length) {
+				long[] grown = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, grown, 0, offsets.length);
+				offsets = grown;
+			}
+			offsets[(int) count++] = position;
+			out.writeShort(key.length);
+			out.write(key);
+			out.writeShort(value.length);
+			out.write(value);
+			position += length;
+		}
+
+		/**
+		 * Write index and footer, sync the file to disk and close it
+		 * @throws IOException
+		 */
+		public void finish () throws IOException {
+			try {
+				// index entries are 8-byte aligned so none crosses a chunk
+				pad((8 - (position & 7)) & 7);
+				long indexOffset = position;
+				for (int i = 0; i < count; i++) {
+					out.writeLong(offsets[i]);
+				}
+				out.writeLong(indexOffset);
+				out.writeLong(count);
+				out.writeInt(MAGIC);
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Close the file without finishing it, e.g. after a failure
+		 */
+		public void abort () {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void pad (long n) throws IOException {
+			for (long i = 0; i < n; i++) {
+				out.write(0);
+			}
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory transport that delivers requests to nodes running in the same
+ * JVM, so hundreds or thousands of nodes fit in one process without
+ * binding ports (see Simulation). Requests and responses are encoded and
+ * decoded by Codec as over TCP, and every request is processed by its
+ * node on the sending thread.
+ *
+ * Each request and each response is delayed by a latency plus a random
+ * jitter, and lost with a probability. The sender notices a loss like
+ * over TCP, when its read timeout expires. A request to a node that is not
+ * running fails at once, like a refused connection.
+ * @author Chuan Xia
+ *
+ */
+
+public class SimNetwork implements Transport {
+
+	private static final String[] NAMES = opcodeNames();
+
+	private final ConcurrentHashMap<InetSocketAddress, Node> nodes = new ConcurrentHashMap<InetSocketAddress, Node>();
+	private final long latencyNanos;
+	private final long jitterNanos;
+	private final double loss;
+
+	// statistics by request opcode, responses count towards their request
+	private final AtomicLongArray messages = new AtomicLongArray(256);
+	private final AtomicLongArray bytes = new AtomicLongArray(256);
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	// requests delivered to every node, both ports
+	private final ConcurrentHashMap<InetSocketAddress, AtomicLong> received = new ConcurrentHashMap<InetSocketAddress, AtomicLong>();
+
+	/**
+	 * Constructor
+	 * @param latencyNanos: one-way delay of every message
+	 * @param jitterNanos: random extra delay, up to this much
+	 * @param loss: probability that a message is lost, 0 to 1
+	 */
+	public SimNetwork (long latencyNanos, long jitterNanos, double loss) {
+		this.latencyNanos = latencyNanos;
+		this.jitterNanos = jitterNanos;
+		this.loss = loss;
+	}
+
+	public Message request (InetSocketAddress server, Message req, int timeout) {
+		Node node = nodes.get(server);
+		boolean data = false;
+		if (node == null) {
+			node = nodes.get(new InetSocketAddress(server.getAddress(), server.getPort() - Listener.DATA_PORT_OFFSET));
+			data = true;
+		}
+		int opcode = req.getOpcode() & 0xFF;
+		messages.incrementAndGet(opcode);
+		Message request = transfer(req, opcode);
+		if (node == null || request == null) {
+			refused.incrementAndGet();
+			return null;
+		}
+
+		if (!deliver(timeout)) {
+			return null;
+		}
+		AtomicLong count = received.get(node.getAddress());
+		if (count != null) {
+			count.incrementAndGet();
+		}
+		Message response = transfer(node.process(request, data), opcode);
+		if (response == null || !deliver(timeout)) {
+			return null;
+		}
+		return response;
+	}
+
+	public void evict (InetSocketAddress server) {
+		// no connections to drop
+	}
+
+	/**
+	 * A node is reachable from start(), when it joins, until toDie(),
+	 * when it leaves or crashes
+	 */
+	public Server listen (final Node node) {
+		return new Server() {
+			public void start() {
+				received.putIfAbsent(node.getAddress(), new AtomicLong());
+				nodes.put(node.getAddress(), node);
+			}
+
+			public void toDie() {
+				nodes.remove(node.getAddress(), node);
+			}
+
+			public String summary() {
+				return "listener: in memory";
+			}
+		};
+	}
+
+	public String summary () {
+		long n = 0;
+		long b = 0;
+		for (int i = 0; i < 256; i++) {
+			n += messages.get(i);
+			b += bytes.get(i);
+		}
+		return "sim network: nodes=" + nodes.size() + " requests=" + n + " bytes=" + b
+				+ " lost=" + lost.get() + " refused=" + refused.get();
+	}
+
+	/**
+	 * Requests sent so far
+	 * @return count per request opcode
+	 */
+	public long[] getMessages () {
+		return copy(messages);
+	}
+
+	/**
+	 * Bytes of requests and their responses sent so far
+	 * @return bytes per request opcode
+	 */
+	public long[] getBytes () {
+		return copy(bytes);
+	}
+
+	/**
+	 * Requests delivered to a node so far, on both of its ports
+	 * @param node: the node's routing address
+	 * @return count, 0 for a node that never ran
+	 */
+	public long getReceived (InetSocketAddress node) {
+		AtomicLong count = received.get(node);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Name of a Message opcode
+	 * @param opcode
+	 * @return e.g. "FINDSUCC"
+	 */
+	public static String opcodeName (int opcode) {
+		String name = NAMES[opcode & 0xFF];
+		return name != null ? name : "#" + (opcode & 0xFF);
+	}
+
+	/**
+	 * Send a message across: encode and decode it, counting its bytes
+	 * @return the decoded copy, null if m is null or cannot be decoded
+	 */
+	private Message transfer (Message m, int opcode) {
+		if (m == null) {
+			return null;
+		}
+		ByteBuffer frame = Codec.encode(m);
+		bytes.addAndGet(opcode, frame.remaining());
+		frame.position(4);
+		try {
+			return Codec.decode(frame.slice());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Delay a message, or lose it and wait out the sender's timeout
+	 * @return false if the message is lost
+	 */
+	private boolean deliver (int timeout) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (loss > 0 && random.nextDouble() < loss) {
+			lost.incrementAndGet();
+			if (timeout > 0) {
+				LockSupport.parkNanos(timeout * 1000000L);
+			}
+			return false;
+		}
+		long delay = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos) : 0);
+		if (delay > 0) {
+			LockSupport.parkNanos(delay);
+		}
+		return true;
+	}
+
+	private static long[] copy (AtomicLongArray a) {
+		long[] ret = new long[a.length()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = a.get(i);
+		}
+		return ret;
+	}
+
+	// names of Message's opcode constants by value
+	private static String[] opcodeNames () {
+		String[] ret = new String[256];
+		for (Field f : Message.class.getFields()) {
+			if (f.getType() == byte.class && Modifier.isStatic(f.getModifiers())) {
+				try {
+					ret[f.getByte(null) & 0xFF] = f.getName();
+				} catch (IllegalAccessException e) {
+					// public constants, cannot happen
+				}
+			}
+		}
+		return ret;
+	}
+}
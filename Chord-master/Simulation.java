@@ -0,0 +1,516 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Simulation class that runs many nodes in one JVM over a SimNetwork and
+ * drives them with a script, to see how lookup hops, convergence time
+ * and maintenance traffic scale with the number of nodes. Usage:
+ *
+ * 	java Simulation [--nodes=N] [--lookups=L] [--script=file]
+ * 	  [--latency=ms] [--jitter=ms] [--loss=p] [--timeout=ms] [--workers=n]
+ * 	  [--rings=K] [--id-bits=m] [--replicas=r] [--vnodes=v] [--seed=s] [--verbose]
+ *
+ * A script has one command per line, n is a number of nodes or a
+ * percentage of the running nodes (e.g. 10%):
+ *
+ * 	join n        start n nodes, each joining through a random running node
+ * 	leave n       n random nodes hand their records over and leave
+ * 	crash n       n random nodes stop without telling anyone
+ * 	converge [s]  wait up to s seconds (default 120) until the successor
+ * 	              and predecessor of every node are right in every ring
+ * 	lookup n      route n random identifiers in every ring from random
+ * 	              nodes, report hops and wrong answers
+ * 	spread n      how evenly the nodes share every ring: the part of the
+ * 	              identifiers each owns with its virtual nodes, and the
+ * 	              gets and routing requests each receives for n random keys,
+ * 	              as multiples of the mean per node
+ * 	traffic s     count the messages the nodes send in s seconds
+ * 	sleep s       let the nodes run for s seconds
+ * 	stats         print the network counters
+ *
+ * Without a script: join N, converge, lookup L, spread L, traffic 5,
+ * crash 10%, converge, lookup L, leave 10%, converge, lookup L.
+ * @author Chuan Xia
+ *
+ */
+
+public class Simulation {
+
+	// port of every simulated node, each has its own address 10.x.y.z
+	private static final int PORT = 8000;
+
+	private final SimNetwork network;
+	private final PrintStream out;
+	private final Random random;
+	private final int rings;
+	private final ArrayList<Node> running = new ArrayList<Node>();
+	private int created = 0;
+
+	public Simulation (SimNetwork network, PrintStream out, long seed) {
+		this.network = network;
+		this.out = out;
+		random = new Random(seed);
+		rings = Helper.getNumRings();
+	}
+
+	public static void main (String[] args) {
+		new Helper();
+		HashMap<String, String> options = new HashMap<String, String>();
+		args = Chord.parseOptions(args, options);
+		if (!Chord.setRings(options) || !Chord.setReplicas(options) || !Chord.setVirtualNodes(options)) {
+			System.exit(0);
+		}
+		int count = Integer.parseInt(options.getOrDefault("nodes", "100"));
+		int lookups = Integer.parseInt(options.getOrDefault("lookups", "1000"));
+		double latency = Double.parseDouble(options.getOrDefault("latency", "0"));
+		double jitter = Double.parseDouble(options.getOrDefault("jitter", "0"));
+		double loss = Double.parseDouble(options.getOrDefault("loss", "0"));
+		int workers = Integer.parseInt(options.getOrDefault("workers", "64"));
+		if (loss < 0 || loss >= 1) {
+			System.out.println("Loss must be in [0, 1). Now exit.");
+			System.exit(0);
+		}
+
+		// lost messages cost a timeout, keep it short
+		Helper.setReadTimeout(Integer.parseInt(options.getOrDefault("timeout", "500")));
+
+		// every node in one JVM: shared maintenance threads, small filters
+		SimNetwork network = new SimNetwork((long) (latency * 1000000), (long) (jitter * 1000000), loss);
+		Helper.setTransport(network);
+		ScheduledExecutorService scheduler = Threads.newScheduler("sim", workers);
+		Node.setSharedScheduler(scheduler);
+		RecordStore.setFilterCapacity(1024);
+
+		// the nodes' own messages only with --verbose
+		PrintStream out = System.out;
+		if (!options.containsKey("verbose")) {
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+			}));
+		}
+
+		List<String> script;
+		if (options.containsKey("script")) {
+			try {
+				script = readScript(options.get("script"));
+			} catch (IOException e) {
+				out.println("Cannot read script "+options.get("script")+". Now exit.");
+				System.exit(0);
+				return;
+			}
+		}
+		else {
+			script = Arrays.asList("join "+count, "converge", "lookup "+lookups, "spread "+lookups, "traffic 5",
+					"crash 10%", "converge", "lookup "+lookups, "leave 10%", "converge", "lookup "+lookups);
+		}
+
+		out.println(String.format("%d rings, %d replicas, %d virtual nodes, latency %.1fms + %.1fms jitter, loss %.1f%%, timeout %dms\n",
+				Helper.getNumRings(), Helper.getReplicas(), Node.getVirtualNodes(), latency, jitter, 100 * loss, Helper.getReadTimeout()));
+		Simulation sim = new Simulation(network, out, Long.parseLong(options.getOrDefault("seed", "1")));
+		for (String line : script) {
+			if (!sim.run(line)) {
+				out.println("Unknown command: "+line+". Now exit.");
+				break;
+			}
+		}
+		sim.stopAll();
+		scheduler.shutdownNow();
+		System.exit(0);
+	}
+
+	/**
+	 * Run one script command
+	 * @param line
+	 * @return false if the command is not known
+	 */
+	public boolean run (String line) {
+		String[] tok = line.trim().split("\\s+");
+		if (tok[0].isEmpty() || tok[0].startsWith("#")) {
+			return true;
+		}
+		String arg = tok.length > 1 ? tok[1] : null;
+		out.println("> "+line.trim());
+		if (tok[0].equals("join")) {
+			join(count(arg));
+		}
+		else if (tok[0].equals("leave")) {
+			stop(count(arg), true);
+		}
+		else if (tok[0].equals("crash")) {
+			stop(count(arg), false);
+		}
+		else if (tok[0].equals("converge")) {
+			converge(arg == null ? 120 : Integer.parseInt(arg));
+		}
+		else if (tok[0].equals("lookup")) {
+			lookup(count(arg));
+		}
+		else if (tok[0].equals("spread")) {
+			spread(count(arg));
+		}
+		else if (tok[0].equals("traffic")) {
+			traffic(Integer.parseInt(arg));
+		}
+		else if (tok[0].equals("sleep")) {
+			sleep(Integer.parseInt(arg) * 1000L);
+		}
+		else if (tok[0].equals("stats")) {
+			out.println(network.summary());
+			out.println(Helper.getRpcLatency().summary());
+		}
+		else {
+			return false;
+		}
+		out.println();
+		return true;
+	}
+
+	/**
+	 * Start n nodes one after the other
+	 * @param n
+	 */
+	public void join (int n) {
+		long start = System.nanoTime();
+		int failed = 0;
+		for (int i = 0; i < n; i++) {
+			Node node = new Node(address(++created), rings);
+			InetSocketAddress contact = running.isEmpty() ? node.getAddress() : running.get(random.nextInt(running.size())).getAddress();
+			if (node.join(contact)) {
+				running.add(node);
+			}
+			else {
+				failed++;
+			}
+		}
+		out.println(String.format("%d nodes joined in %.1fms, %d failed, %d running",
+				n - failed, (System.nanoTime() - start) / 1e6, failed, running.size()));
+	}
+
+	/**
+	 * Stop n random nodes
+	 * @param n
+	 * @param leave: true to hand the records over first, false to crash
+	 */
+	public void stop (int n, boolean leave) {
+		Collections.shuffle(running, random);
+		n = Math.min(n, running.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			Node node = running.remove(running.size() - 1);
+			if (leave) {
+				node.leave();
+			}
+			node.stopAllThreads();
+		}
+		out.println(String.format("%d nodes %s in %.1fms, %d running",
+				n, leave ? "left" : "crashed", (System.nanoTime() - start) / 1e6, running.size()));
+	}
+
+	/**
+	 * Wait until every node's successor and predecessor are right in every ring
+	 * @param seconds: give up after this long
+	 */
+	public void converge (int seconds) {
+		long start = System.nanoTime();
+		long deadline = start + seconds * 1000000000L;
+		int wrong;
+		while ((wrong = wrongPointers()) > 0 && System.nanoTime() < deadline) {
+			sleep(50);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e6;
+		if (wrong == 0) {
+			out.println(String.format("converged in %.0fms", elapsed));
+		}
+		else {
+			out.println(String.format("not converged after %.0fms, %d of %d pointers wrong", elapsed, wrong, 2 * rings * members()));
+		}
+	}
+
+	/**
+	 * Route n random identifiers in every ring and compare the answers
+	 * with the nodes that are really responsible
+	 * @param n
+	 */
+	public void lookup (int n) {
+		if (running.isEmpty()) {
+			return;
+		}
+		out.println(String.format("log2(N) = %.2f", Math.log(running.size()) / Math.log(2)));
+		for (int r = 0; r < rings; r++) {
+			Ring ring = new Ring(running, r);
+			int[] hops = new int[n];
+			int wrong = 0;
+			long start = System.nanoTime();
+			for (int j = 0; j < n; j++) {
+				Node from = running.get(random.nextInt(running.size()));
+				long id = Helper.randomId(random);
+				Peer found = from.find_successor(id, r);
+				hops[j] = Node.getLastLookupHops();
+				if (!ring.owner(id).equals(found)) {
+					wrong++;
+				}
+			}
+			double elapsed = (System.nanoTime() - start) / 1e6;
+			Arrays.sort(hops);
+			long sum = 0;
+			for (int h : hops) {
+				sum += h;
+			}
+			out.println(String.format("ring %d  lookups: %6d  hops avg: %5.2f  p50: %3d  p99: %3d  max: %3d  wrong: %d  %.3fms each",
+					r, n, (double) sum / n, hops[n / 2], hops[Math.min(n - 1, n * 99 / 100)], hops[n - 1], wrong, elapsed / n));
+		}
+	}
+
+	/**
+	 * Show how evenly the running nodes share every ring. Per node: the
+	 * part of the identifiers its members own, the gets of n random keys
+	 * it answers as their owner, and the requests it receives while they
+	 * are routed from random nodes. Each as min, median, p99 and max of the
+	 * nodes, in multiples of the mean per node
+	 * @param n
+	 */
+	public void spread (int n) {
+		if (running.isEmpty() || n < 1) {
+			return;
+		}
+		HashMap<InetSocketAddress, Integer> index = new HashMap<InetSocketAddress, Integer>();
+		for (int i = 0; i < running.size(); i++) {
+			index.put(running.get(i).getAddress(), i);
+		}
+		double size = Math.pow(2, Helper.getIdBits());
+		for (int r = 0; r < rings; r++) {
+			Ring ring = new Ring(running, r);
+			double[] owned = new double[running.size()];
+			for (int i = 0; i < ring.nodes.length; i++) {
+				long pred = ring.ids[(i + ring.ids.length - 1) % ring.ids.length];
+				long part = Helper.computeRelativeId(ring.ids[i], pred);
+				owned[index.get(ring.nodes[i].getAddress())] += part == 0 ? size : part;
+			}
+
+			double[] gets = new double[running.size()];
+			long[] before = received();
+			for (int j = 0; j < n; j++) {
+				Node from = running.get(random.nextInt(running.size()));
+				Peer found = from.find_successor(Helper.hashString("key" + random.nextLong(), r), r);
+				Integer owner = found == null ? null : index.get(found.getAddress());
+				if (owner != null) {
+					gets[owner]++;
+				}
+			}
+			long[] after = received();
+			double[] routing = new double[running.size()];
+			for (int i = 0; i < routing.length; i++) {
+				routing[i] = after[i] - before[i];
+			}
+
+			out.println(spreadLine(r, "ownership", owned));
+			out.println(spreadLine(r, "gets", gets));
+			out.println(spreadLine(r, "routing", routing));
+		}
+	}
+
+	/**
+	 * Count the messages sent by the running nodes for a while, which is
+	 * their maintenance traffic if nothing else runs meanwhile
+	 * @param seconds
+	 */
+	public void traffic (int seconds) {
+		long[] messages = network.getMessages();
+		long[] bytes = network.getBytes();
+		sleep(seconds * 1000L);
+		long[] messagesAfter = network.getMessages();
+		long[] bytesAfter = network.getBytes();
+
+		double perNode = (double) seconds * Math.max(1, running.size());
+		long total = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < messages.length; i++) {
+			long m = messagesAfter[i] - messages[i];
+			long b = bytesAfter[i] - bytes[i];
+			if (m > 0) {
+				out.println(String.format("%-10s  %9.1f requests/node/s  %10.0f bytes/node/s", SimNetwork.opcodeName(i), m / perNode, b / perNode));
+			}
+			total += m;
+			totalBytes += b;
+		}
+		out.println(String.format("%-10s  %9.1f requests/node/s  %10.0f bytes/node/s", "total", total / perNode, totalBytes / perNode));
+	}
+
+	/**
+	 * Stop every running node
+	 */
+	public void stopAll () {
+		for (Node node : running) {
+			node.stopAllThreads();
+		}
+		running.clear();
+	}
+
+	/**
+	 * Requests every running node has received so far
+	 * @return count per node, in the order of running
+	 */
+	private long[] received () {
+		long[] ret = new long[running.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = network.getReceived(running.get(i).getAddress());
+		}
+		return ret;
+	}
+
+	/**
+	 * One line of spread(): the distribution of values over the nodes
+	 * @param ring_nr
+	 * @param what
+	 * @param values: one per node
+	 */
+	private static String spreadLine (int ring_nr, String what, double[] values) {
+		double[] v = values.clone();
+		Arrays.sort(v);
+		double sum = 0;
+		for (double x : v) {
+			sum += x;
+		}
+		double mean = Math.max(sum / v.length, Double.MIN_VALUE);
+		double squares = 0;
+		for (double x : v) {
+			squares += (x / mean - 1) * (x / mean - 1);
+		}
+		return String.format("ring %d  %-9s  min: %5.2f  p50: %5.2f  p99: %5.2f  max: %5.2f  stddev: %5.2f  (x mean)",
+				ring_nr, what, v[0] / mean, v[v.length / 2] / mean, v[Math.min(v.length - 1, v.length * 99 / 100)] / mean,
+				v[v.length - 1] / mean, Math.sqrt(squares / v.length));
+	}
+
+	/**
+	 * Number of ring members of the running nodes, virtual nodes included
+	 */
+	private int members () {
+		int ret = 0;
+		for (Node node : running) {
+			ret += node.getMembers().length;
+		}
+		return ret;
+	}
+
+	/**
+	 * Number of successor and predecessor pointers that are not right
+	 * @return count over every node and ring
+	 */
+	private int wrongPointers () {
+		int n = members();
+		if (n < 2) {
+			return 0;
+		}
+		int wrong = 0;
+		for (int r = 0; r < rings; r++) {
+			Ring ring = new Ring(running, r);
+			for (int i = 0; i < n; i++) {
+				Node node = ring.nodes[i];
+				if (!ring.nodes[(i + 1) % n].getPeer().equals(node.getSuccessor(r))) {
+					wrong++;
+				}
+				if (!ring.nodes[(i + n - 1) % n].getPeer().equals(node.getPredecessor(r))) {
+					wrong++;
+				}
+			}
+		}
+		return wrong;
+	}
+
+	/**
+	 * Number of nodes of a command argument
+	 * @param arg: count, or percentage of the running nodes, e.g. 10%
+	 * @return count
+	 */
+	private int count (String arg) {
+		if (arg == null) {
+			return 1;
+		}
+		if (arg.endsWith("%")) {
+			return (int) Math.round(running.size() * Double.parseDouble(arg.substring(0, arg.length() - 1)) / 100);
+		}
+		return Integer.parseInt(arg);
+	}
+
+	/**
+	 * Address of the i-th simulated node, 10.0.0.1, 10.0.0.2, ...
+	 */
+	private static InetSocketAddress address (int i) {
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}), PORT);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<String> readScript (String file) throws IOException {
+		ArrayList<String> ret = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				ret.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return ret;
+	}
+
+	private static void sleep (long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The members of one ring sorted by identifier: the running nodes and
+	 * their virtual nodes
+	 */
+	private static class Ring {
+
+		private final Node[] nodes;
+		private final long[] ids;
+
+		Ring (List<Node> running, final int ring_nr) {
+			ArrayList<Node> members = new ArrayList<Node>();
+			for (Node node : running) {
+				members.addAll(Arrays.asList(node.getMembers()));
+			}
+			nodes = members.toArray(new Node[members.size()]);
+			Arrays.sort(nodes, new Comparator<Node>() {
+				public int compare(Node a, Node b) {
+					return Long.compare(a.getPeer().getId(ring_nr), b.getPeer().getId(ring_nr));
+				}
+			});
+			ids = new long[nodes.length];
+			for (int i = 0; i < nodes.length; i++) {
+				ids[i] = nodes[i].getPeer().getId(ring_nr);
+			}
+		}
+
+		// first node at or after id, the first node of the ring if none
+		Peer owner (long id) {
+			int i = Arrays.binarySearch(ids, id);
+			i = i >= 0 ? i : -i - 1;
+			return nodes[i == ids.length ? 0 : i].getPeer();
+		}
+	}
+}
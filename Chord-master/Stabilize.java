@@ -1,71 +1,71 @@
-import java.net.InetSocketAddress;
+import java.util.List;
 
 /**
- * Stabilize thread that periodically asks successor for its predecessor
- * and determine if current node should update or delete its successor.
+ * Stabilize task that periodically asks successor for its predecessor
+ * and determine if current node should update or delete its successor,
+ * then rebuilds the successor list from the successor's list.
+ * Each ring has its own task. Node runs one round every PERIOD milliseconds.
  * @author Chuan Xia
  *
  */
 
-public class Stabilize extends Thread {
-	
+public class Stabilize implements Runnable {
+
+	// milliseconds between two rounds
+	public static final long PERIOD = 60;
+
 	private Node local;
-	private boolean alive;
+	private int ring;
 
-	public Stabilize(Node _local) {
+	public Stabilize(Node _local, int _ring) {
 		local = _local;
-		alive = true;
+		ring = _ring;
 	}
 
 	@Override
 	public void run() {
-		while (alive) {
-			InetSocketAddress successor = local.getSuccessor();
-			if (successor == null || successor.equals(local.getAddress())) {
-				local.updateFingers(-3, null); //fill
-			}
-			successor = local.getSuccessor();
-			if (successor != null && !successor.equals(local.getAddress())) {
+		Peer successor = local.getSuccessor(ring);
+		if (successor == null || successor.equals(local.getPeer())) {
+			local.updateFingers(ring, -3, null); //fill
+		}
+		successor = local.getSuccessor(ring);
+		if (successor != null && !successor.equals(local.getPeer())) {
 
-				// try to get my successor's predecessor
-				InetSocketAddress x = Helper.requestAddress(successor, "YOURPRE");
+			// try to get my successor's predecessor
+			Peer x = Helper.requestPeer(successor, Message.YOURPRE, ring);
 
-				// if bad connection with successor! delete successor
-				if (x == null) {
-					local.updateFingers(-1, null);
-				}
+			// if bad connection with successor! delete successor
+			if (x == null) {
+				local.updateFingers(ring, -1, null);
+			}
 
-				// else if successor's predecessor is not itself
-				else if (!x.equals(successor)) {
-					long local_id = Helper.hashSocketAddress(local.getAddress(), 0);
-					long successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(successor, 0), local_id);
-					long x_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(x, 0),local_id);
-					if (x_relative_id>0 && x_relative_id < successor_relative_id) {
-						local.updateFingers(1,x);
-					}
-				}
-				
-				// successor's predecessor is successor itself, then notify successor
-				else {
-					local.notify(successor);
-				}
+			// else if successor's predecessor is between us, it is the new successor
+			else if (!x.equals(successor) && between(x, successor)) {
+				local.updateFingers(ring, 1, x);
 			}
 
-			try {
-				Thread.sleep(60);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			// successor's predecessor is not this node (successor itself, or a
+			// node before this one), then notify successor
+			else if (!x.equals(local.getPeer())) {
+				local.notify(successor, ring);
 			}
 		}
 
+		// refresh the successor list from the successor's own list
+		successor = local.getSuccessor(ring);
+		if (successor != null && !successor.equals(local.getPeer())) {
+			List<Peer> theirs = Helper.requestSuccessors(successor, ring);
+			if (theirs != null) {
+				local.updateSuccessors(ring, successor, theirs);
+			}
+		}
 	}
 
-	public void toDie() {
-		alive = false;
+	// whether x is strictly between this node and successor in the ring
+	private boolean between(Peer x, Peer successor) {
+		long local_id = local.getPeer().getId(ring);
+		long successor_relative_id = Helper.computeRelativeId(successor.getId(ring), local_id);
+		long x_relative_id = Helper.computeRelativeId(x.getId(ring),local_id);
+		return x_relative_id>0 && x_relative_id < successor_relative_id;
 	}
-
-
-
-
-
 }
@@ -1,99 +1,111 @@
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-
 /**
- * Talker thread that processes request accepted by listener and writes
- * response to socket.
+ * Talker that processes one routing request decoded by listener and hands
+ * the response back to the listener's connection.
  * @author Chuan Xia
  *
  */
 
 public class Talker implements Runnable{
 
-	Socket talkSocket;
-	private Node local;
+	private Message request;
+	private Listener.Connection connection;
+	private Node host;
 
-	public Talker(Socket _talkSocket, Node _local)
+	public Talker(Message _request, Listener.Connection _connection, Node _host)
 	{
-		talkSocket = _talkSocket;
-		local = _local;
+		request = _request;
+		connection = _connection;
+		host = _host;
 	}
 
 	public void run()
 	{
-		InputStream input = null;
-		OutputStream output = null;
+		// the connection waits for a reply to every request, even one
+		// that cannot be processed
+		Message response = null;
 		try {
-			input = talkSocket.getInputStream();
-			String request = Helper.inputStreamToString(input);
-			String response = processRequest(request);
-			if (response != null) {
-				output = talkSocket.getOutputStream();
-				output.write(response.getBytes());
-			}
-			input.close();
-		} catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot talk.\nServer port: "+local.getAddress().getPort()+"; Talker port: "+talkSocket.getPort(), e);
+			response = processRequest(request);
+		} catch (RuntimeException e) {
+			response = request.reply(Message.NOTHING);
+		} finally {
+			connection.reply(response);
 		}
 	}
 
-	private String processRequest(String request)
+	/**
+	 * Whether a request is answered from this node's state alone, without
+	 * a request to another node, so it can be answered right away
+	 * @param request
+	 * @return false for FINDSUCC and CLOSEST
+	 */
+	static boolean answersLocally(Message request)
+	{
+		return request == null || request.getOpcode() != Message.FINDSUCC && request.getOpcode() != Message.CLOSEST;
+	}
+
+	/**
+	 * Process a request and build its response
+	 * @param request
+	 * @return response, null if request is null
+	 */
+	Message processRequest(Message request)
 	{
-		InetSocketAddress result = null;
-		String ret = null;
+		Peer result = null;
+		Message ret = null;
 		if (request  == null) {
 			return null;
 		}
-		if (request.startsWith("CLOSEST")) {
-			long id = Long.parseLong(request.split("_")[1]);
-			int ring_nr = Integer.parseInt(request.split("_")[2]);
-			result = local.closest_preceding_finger(id, ring_nr);
-			String ip = result.getAddress().toString();
-			int port = result.getPort();
-			ret = "MYCLOSEST_"+ip+":"+port;
+		// the request is for one of the host's virtual nodes, which takes
+		// no part in the requested ring if it does not exist; only
+		// requests that pick a ring themselves may leave it out (-1)
+		Node local = host.getMember(request.getVnode());
+		int lowest = request.getOpcode() == Message.CLOSEST ? 0 : -1;
+		if (local == null || request.getRing() < lowest || request.getRing() >= local.getNumRings()) {
+			return request.reply(Message.NOTHING);
 		}
-		else if (request.startsWith("YOURSUCC")) {
-			result =local.getSuccessor();
+
+		// successor/predecessor requests without a ring are about ring 0
+		int ring = request.getRing() < 0 ? 0 : request.getRing();
+		switch (request.getOpcode()) {
+		case Message.CLOSEST:
+			result = local.closest_preceding_finger(request.getId(), request.getRing());
+			ret = request.reply(Message.MYCLOSEST).withPeer(result);
+			break;
+		case Message.YOURSUCC:
+			result =local.getSuccessor(ring);
 			if (result != null) {
-				String ip = result.getAddress().toString();
-				int port = result.getPort();
-				ret = "MYSUCC_"+ip+":"+port;
+				ret = request.reply(Message.MYSUCC).withPeer(result);
 			}
 			else {
-				ret = "NOTHING";
+				ret = request.reply(Message.NOTHING);
 			}
-		}
-		else if (request.startsWith("YOURPRE")) {
-			result = local.getPredecessor();
+			break;
+		case Message.YOURPRE:
+			result = local.getPredecessor(ring);
 			if (result != null) {
-				String ip = result.getAddress().toString();
-				int port = result.getPort();
-				ret = "MYPRE_"+ip+":"+port;
+				ret = request.reply(Message.MYPRE).withPeer(result);
 			}
 			else {
-				ret = "NOTHING";
+				ret = request.reply(Message.NOTHING);
 			}
-		}
-		else if (request.startsWith("FINDSUCC")) {
-			long id = Long.parseLong(request.split("_")[1]);
-			int ring_nr = Integer.parseInt(request.split("_")[2]);
-			result = local.find_successor(id, ring_nr);
-			String ip = result.getAddress().toString();
-			int port = result.getPort();
-			ret = "FOUNDSUCC_"+ip+":"+port;
-		}
-		else if (request.startsWith("IAMPRE")) {
-			InetSocketAddress new_pre = Helper.createSocketAddress(request.split("_")[1]);
-			local.notified(new_pre);
-			ret = "NOTIFIED";
-		}
-		else if (request.startsWith("KEEP")) {
-			ret = "ALIVE";
+			break;
+		case Message.FINDSUCC:
+			result = local.find_successor(request.getId(), request.getRing());
+			ret = request.reply(Message.FOUNDSUCC).withPeer(result);
+			break;
+		case Message.SUCCLIST:
+			ret = request.reply(Message.MYSUCCLIST).withPeers(local.getSuccessors(ring));
+			break;
+		case Message.IAMPRE:
+			local.notified(request.getPeer(), ring);
+			ret = request.reply(Message.NOTIFIED);
+			break;
+		case Message.KEEP:
+			ret = request.reply(Message.ALIVE);
+			break;
+		default:
+			ret = request.reply(Message.NOTHING);
 		}
 		return ret;
 	}
-}
\ No newline at end of file
+}
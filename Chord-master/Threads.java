@@ -0,0 +1,208 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates every thread a node runs besides the listener's selector, either
+ * as platform threads (default) or as virtual threads (--threads=virtual).
+ * Request handlers spend nearly all their time blocked on socket I/O, which
+ * a virtual thread waits out without holding an OS thread.
+ * Virtual threads need Java 21; they are looked up by reflection so the
+ * sources still build and run with older JDKs in platform mode.
+ * @author Chuan Xia
+ *
+ */
+
+public class Threads {
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	private static volatile boolean virtual = false;
+
+	/**
+	 * Select the thread mode for everything created after this call
+	 * @param mode: PLATFORM or VIRTUAL
+	 * @return false if mode is unknown or virtual threads are not supported
+	 */
+	public static boolean setMode (String mode) {
+		if (PLATFORM.equals(mode)) {
+			virtual = false;
+			return true;
+		}
+		if (VIRTUAL.equals(mode) && isVirtualSupported()) {
+			virtual = true;
+			return true;
+		}
+		return false;
+	}
+
+	public static String getMode () {
+		return virtual ? VIRTUAL : PLATFORM;
+	}
+
+	/**
+	 * Whether new threads are virtual, cheaper to check than getMode()
+	 * @return true in VIRTUAL mode
+	 */
+	public static boolean isVirtual () {
+		return virtual;
+	}
+
+	public static boolean isVirtualSupported () {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Thread factory of the current mode
+	 * @param name: thread name prefix
+	 * @return factory
+	 */
+	public static ThreadFactory newFactory (String name) {
+		return virtual ? virtualFactory(name) : platformFactory(name);
+	}
+
+	/**
+	 * Worker pool for request handlers. Platform mode uses a fixed number of
+	 * threads in front of a bounded queue; virtual mode starts one virtual
+	 * thread per task. Either way at most count + capacity tasks are
+	 * accepted at once and execute() throws RejectedExecutionException
+	 * beyond that, which is what the listener's backpressure relies on.
+	 * @param name: thread name prefix
+	 * @param count: number of platform worker threads
+	 * @param capacity: number of tasks that may wait for a platform worker
+	 * @return executor
+	 */
+	public static Executor newWorkers (String name, int count, int capacity) {
+		if (virtual) {
+			return new PerTaskExecutor(virtualFactory(name), count + capacity);
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(count, count, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity), platformFactory(name));
+		pool.prestartAllCoreThreads();
+		return pool;
+	}
+
+	/**
+	 * Scheduler for the periodic maintenance tasks (stabilize, fix fingers, ...)
+	 * @param name: thread name prefix
+	 * @param count: number of tasks run at the same time
+	 * @return scheduler
+	 */
+	public static ScheduledExecutorService newScheduler (String name, int count) {
+		return new ScheduledThreadPoolExecutor(count, newFactory(name));
+	}
+
+	/**
+	 * Stop an executor created by newWorkers()
+	 * @param workers
+	 */
+	public static void shutdown (Executor workers) {
+		if (workers instanceof ExecutorService) {
+			((ExecutorService) workers).shutdown();
+		}
+		else if (workers instanceof PerTaskExecutor) {
+			((PerTaskExecutor) workers).shutdown();
+		}
+	}
+
+	/**
+	 * Summary line of an executor created by newWorkers()
+	 * @param workers
+	 * @return summary string
+	 */
+	public static String summary (Executor workers) {
+		if (workers instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+			return "workers=" + pool.getActiveCount() + "/" + pool.getMaximumPoolSize()
+					+ " queued=" + pool.getQueue().size() + "/" + (pool.getQueue().size() + pool.getQueue().remainingCapacity())
+					+ " completed=" + pool.getCompletedTaskCount();
+		}
+		PerTaskExecutor perTask = (PerTaskExecutor) workers;
+		return "virtual workers=" + perTask.getActiveCount() + "/" + perTask.limit
+				+ " completed=" + perTask.completed.get();
+	}
+
+	private static ThreadFactory platformFactory (final String name) {
+		final AtomicInteger next = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + next.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static ThreadFactory virtualFactory (String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+			builder = nameMethod.invoke(builder, name + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	/**
+	 * Executor that starts a new thread for every task,
+	 * refusing tasks while limit of them are running
+	 */
+	private static class PerTaskExecutor implements Executor {
+
+		private final ThreadFactory factory;
+		private final int limit;
+		private final Semaphore permits;
+		private final AtomicLong completed;
+		private volatile boolean shutdown;
+
+		PerTaskExecutor (ThreadFactory factory, int limit) {
+			this.factory = factory;
+			this.limit = limit;
+			this.permits = new Semaphore(limit);
+			this.completed = new AtomicLong();
+			this.shutdown = false;
+		}
+
+		public void execute (final Runnable task) {
+			if (shutdown || !permits.tryAcquire()) {
+				throw new RejectedExecutionException();
+			}
+			factory.newThread(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						completed.incrementAndGet();
+						permits.release();
+					}
+				}
+			}).start();
+		}
+
+		int getActiveCount () {
+			return limit - permits.availablePermits();
+		}
+
+		void shutdown () {
+			shutdown = true;
+		}
+	}
+}
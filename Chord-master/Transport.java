@@ -0,0 +1,54 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Transport that carries the requests of Helper.sendRequest() to other
+ * nodes and delivers the requests sent to a node. ConnectionPool and
+ * Listener do this over TCP; SimNetwork delivers to nodes in the same JVM,
+ * see Helper.setTransport().
+ * @author Chuan Xia
+ *
+ */
+
+public interface Transport {
+
+	/**
+	 * Send request to server and wait for the response
+	 * @param server: routing or data address of a node
+	 * @param req
+	 * @param timeout: milliseconds to wait for the response, 0 waits forever
+	 * @return response, null if server cannot be reached or does not answer in time
+	 */
+	Message request (InetSocketAddress server, Message req, int timeout);
+
+	/**
+	 * Forget what is kept about server, e.g. after it failed KEEP
+	 * @param server
+	 */
+	void evict (InetSocketAddress server);
+
+	/**
+	 * Create the end of the transport that delivers requests to a node,
+	 * started when the node joins
+	 * @param node
+	 * @return server
+	 */
+	Server listen (Node node);
+
+	/**
+	 * Summary line of the transport's counters
+	 * @return summary string
+	 */
+	String summary ();
+
+	/**
+	 * The receiving end of a node, e.g. its Listener
+	 */
+	interface Server {
+
+		void start ();
+
+		void toDie ();
+
+		String summary ();
+	}
+}
@@ -0,0 +1,579 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log that makes a node's record stores survive a restart.
+ * Every put is appended to the log before it is acknowledged. Puts that
+ * arrive together are written and synced to disk by one writer thread in
+ * one batch (group commit); fsyncMillis sets how long a batch collects
+ * puts before it is synced, -1 never syncs and leaves flushing to the OS.
+ *
+ * When the log grows past flushBytes the writer freezes the stores' memory
+ * layers and starts a new log file. The frozen layers are then written in
+ * the background as sorted, memory-mapped segments (see Segment), after
+ * which the older logs are deleted; once a store has more than
+ * MAX_SEGMENTS segments they are merged into one. Files in the node's
+ * directory:
+ *
+ * 	seg-<store>-<epoch>-<level>.dat  segment of a store
+ * 	wal-<epoch>.log                  records
+ *
+ * A segment holds everything written to logs older than its epoch, so
+ * recovery maps the segments (which takes milliseconds whatever their
+ * size) and only replays the logs from the oldest epoch not yet in the
+ * segments of every store. A log record is int n, n bytes (byte store,
+ * unsigned short key length, key, unsigned short value length, value),
+ * int CRC32 of the n bytes; replay stops at the first torn or corrupt
+ * record and cuts the log there.
+ * @author Chuan Xia
+ *
+ */
+
+public class WriteAheadLog {
+
+	// a store's segments are merged into one when it has more than this
+	public static final int MAX_SEGMENTS = 4;
+
+	private final File dir;
+	private final RecordStore[] stores;
+	private final int fsyncMillis;
+	private final long flushBytes;
+
+	// guarded by lock
+	private final Object lock = new Object();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended;
+	private long durable;
+	private boolean failed;
+	private boolean closed;
+	private boolean flushing;
+	private long flushesStarted;
+	private long flushes;
+
+	// used by the writer thread only (and by recover() before it starts)
+	private FileChannel log;
+	private long epoch;
+	private long counted;
+	private long lastValid;
+	private Thread writer;
+
+	// statistics
+	private volatile long syncs;
+	private volatile long records;
+
+	/**
+	 * Constructor
+	 * @param dir: directory holding this node's segments and logs
+	 * @param stores: stores whose puts are logged, a record refers to its store by index
+	 * @param fsyncMillis: how long a batch collects puts before it is synced, -1 for never
+	 * @param flushBytes: log size after which the memory layers are flushed into segments
+	 */
+	public WriteAheadLog (File dir, RecordStore[] stores, int fsyncMillis, long flushBytes) {
+		this.dir = dir;
+		this.stores = stores;
+		this.fsyncMillis = fsyncMillis;
+		this.flushBytes = flushBytes;
+	}
+
+	/**
+	 * Map the segments and replay the logs into the stores, then start
+	 * the writer. Call once, before the first append.
+	 * @return number of records replayed from the logs
+	 * @throws IOException if the directory or a file cannot be used
+	 */
+	public long recover () throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		long loaded = 0;
+
+		// segments first, they tell which logs are newer
+		epoch = Long.MAX_VALUE;
+		for (int s = 0; s < stores.length; s++) {
+			epoch = Math.min(epoch, openSegments(s));
+		}
+
+		// then every log from that epoch on, oldest first
+		ArrayList<Long> epochs = logEpochs();
+		for (int i = 0; i < epochs.size(); i++) {
+			long e = epochs.get(i);
+			if (e < epoch) {
+				logFile(e).delete();
+				continue;
+			}
+			File f = logFile(e);
+			long valid;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+				loaded += replay(in);
+				valid = lastValid;
+			}
+			if (valid < f.length()) {
+				System.out.println("Write-ahead log "+f+" ends with a torn record, cut at byte "+valid+".");
+				try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+					c.truncate(valid);
+				}
+			}
+			epoch = e;
+		}
+
+		// the filters have the replayed keys but not those of the segments
+		for (RecordStore store : stores) {
+			if (store.getSegments().length > 0) {
+				store.rebuildFilter();
+			}
+		}
+
+		log = openLog(epoch);
+		writer = Threads.newFactory("wal-" + dir.getName()).newThread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+		writer.start();
+		return loaded;
+	}
+
+	/**
+	 * Apply a put to its store and log it. Blocks until the record is on
+	 * disk (or written to the OS when fsync is off). Puts are applied in
+	 * log order, so replaying the log rebuilds exactly the same stores.
+	 * @param store: index of the store
+	 * @param key
+	 * @param value
+	 * @return true if the record is durable, false if the log failed
+	 */
+	public boolean append (int store, String key, String value) {
+		return appendAll(Collections.singletonList(new Record(store, key, value)));
+	}
+
+	/**
+	 * Apply several puts and log them together, waiting for the disk once
+	 * for all of them
+	 * @param records
+	 * @return true if every record is durable, false if the log failed
+	 */
+	public boolean appendAll (List<Record> records) {
+		byte[][] keys = new byte[records.size()][];
+		byte[][] values = new byte[records.size()][];
+		byte[][] encoded = new byte[records.size()][];
+		for (int i = 0; i < encoded.length; i++) {
+			Record r = records.get(i);
+			keys[i] = r.getKey().getBytes(StandardCharsets.UTF_8);
+			values[i] = r.getValue().getBytes(StandardCharsets.UTF_8);
+			encoded[i] = encode(r.getStore(), keys[i], values[i]);
+		}
+		synchronized (lock) {
+			if (failed || closed) {
+				return false;
+			}
+			if (pending.size() == 0) {
+				lock.notifyAll();
+			}
+			for (int i = 0; i < encoded.length; i++) {
+				pending.write(encoded[i], 0, encoded[i].length);
+				stores[records.get(i).getStore()].putBytes(keys[i], values[i]);
+			}
+			long seq = appended += encoded.length;
+			try {
+				while (durable < seq && !failed) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return durable >= seq;
+		}
+	}
+
+	/**
+	 * Flush the memory layers into segments now and wait until it is done
+	 * @throws IOException if the log has failed
+	 * @throws InterruptedException
+	 */
+	public void flush () throws IOException, InterruptedException {
+		synchronized (lock) {
+			while (flushing) {
+				lock.wait();
+			}
+			long target = flushes + 1;
+			flushing = true;
+			lock.notifyAll();
+			while (flushes < target && !failed) {
+				lock.wait();
+			}
+			if (failed) {
+				throw new IOException("Write-ahead log failed");
+			}
+		}
+	}
+
+	/**
+	 * Write what is pending, stop the writer and close the log
+	 */
+	public void close () {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Print-ready statistics of this log
+	 * @return e.g. "wal: records=100 syncs=12 ..."
+	 */
+	public String summary () {
+		long s = syncs;
+		return String.format("wal: records=%d syncs=%d records/sync=%.1f flushes=%d fsync=%s",
+				records, s, s == 0 ? 0.0 : (double) records / s, flushes,
+				fsyncMillis < 0 ? "off" : fsyncMillis + "ms");
+	}
+
+	/**
+	 * Writer thread: take the pending batch, write it, sync it, wake the
+	 * puts waiting for it; start a flush when the log is big enough.
+	 */
+	private void writeLoop () {
+		OutputStream out = Channels.newOutputStream(log);
+		while (true) {
+			ByteArrayOutputStream batch;
+			long seq;
+			boolean rotate;
+			synchronized (lock) {
+				while (pending.size() == 0 && !closed && !(flushing && flushes == flushesStarted)) {
+					waitLock();
+				}
+
+				// let more puts join this batch
+				if (fsyncMillis > 0 && pending.size() > 0 && !closed) {
+					long deadline = System.currentTimeMillis() + fsyncMillis;
+					long left;
+					while ((left = deadline - System.currentTimeMillis()) > 0 && !closed) {
+						try {
+							lock.wait(left);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+				batch = pending;
+				pending = new ByteArrayOutputStream();
+				seq = appended;
+				rotate = flushing && flushes == flushesStarted;
+			}
+
+			try {
+				if (batch.size() > 0) {
+					batch.writeTo(out);
+					if (fsyncMillis >= 0) {
+						log.force(false);
+					}
+					syncs++;
+					records += countRecords(seq);
+				}
+				synchronized (lock) {
+					durable = seq;
+					lock.notifyAll();
+					if (!flushing && log.size() >= flushBytes) {
+						flushing = true;
+						rotate = true;
+					}
+					if (closed && pending.size() == 0) {
+						break;
+					}
+
+					// everything in the current log is in the layers frozen now,
+					// puts from now on go to the new layers and the next log
+					if (rotate) {
+						for (RecordStore store : stores) {
+							store.freeze();
+						}
+					}
+				}
+				if (rotate) {
+					log.close();
+					epoch++;
+					log = openLog(epoch);
+					out = Channels.newOutputStream(log);
+					startFlush(epoch);
+				}
+			} catch (IOException e) {
+				System.out.println("Write-ahead log failed: "+e.getMessage());
+				synchronized (lock) {
+					failed = true;
+					lock.notifyAll();
+				}
+				break;
+			}
+		}
+		try {
+			log.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private long countRecords (long seq) {
+		long n = seq - counted;
+		counted = seq;
+		return n;
+	}
+
+	/**
+	 * Flush the frozen layers into segments in the background, covering all
+	 * logs older than flushEpoch, then delete those logs and merge the
+	 * segments of stores that have too many
+	 * @param flushEpoch
+	 */
+	private void startFlush (final long flushEpoch) {
+		synchronized (lock) {
+			flushesStarted++;
+		}
+		Threads.newFactory("wal-flush-" + dir.getName()).newThread(new Runnable() {
+			public void run() {
+				try {
+					for (int s = 0; s < stores.length; s++) {
+						File f = segmentFile(s, flushEpoch, 0);
+						File tmp = new File(f.getPath() + ".tmp");
+						stores[s].flushFrozen(new Segment.Writer(tmp), tmp, flushEpoch);
+						Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					}
+					for (long e : logEpochs()) {
+						if (e < flushEpoch) {
+							logFile(e).delete();
+						}
+					}
+					for (int s = 0; s < stores.length; s++) {
+						if (stores[s].getSegments().length > MAX_SEGMENTS) {
+							merge(s);
+						}
+					}
+				} catch (IOException e) {
+					// the next flush would drop the frozen layer, stop taking puts instead
+					System.out.println("Cannot flush records into segments, no more puts are accepted: "+e.getMessage());
+					synchronized (lock) {
+						failed = true;
+					}
+				}
+				synchronized (lock) {
+					flushing = false;
+					flushes++;
+					lock.notifyAll();
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Merge all segments of a store into one
+	 * @param s: store index
+	 * @throws IOException
+	 */
+	private void merge (int s) throws IOException {
+		Segment[] merged = stores[s].getSegments();
+		int level = 0;
+		for (Segment segment : merged) {
+			level = Math.max(level, segment.getLevel());
+		}
+		File f = segmentFile(s, merged[0].getEpoch(), level + 1);
+		File tmp = new File(f.getPath() + ".tmp");
+		Segment.Writer out = new Segment.Writer(tmp);
+		try {
+			Segment.merge(merged, out);
+		} catch (IOException e) {
+			out.abort();
+			throw e;
+		}
+		out.finish();
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		stores[s].replaceSegments(merged, Segment.open(f, merged[0].getEpoch(), level + 1));
+		for (Segment segment : merged) {
+			segment.getFile().delete();
+		}
+	}
+
+	/**
+	 * Map the segments of a store, newest first. A merged segment replaces
+	 * every older one, so those left behind by a crash are deleted.
+	 * @param s: store index
+	 * @return epoch up to which the store's records are in segments
+	 * @throws IOException
+	 */
+	private long openSegments (int s) throws IOException {
+		ArrayList<long[]> found = new ArrayList<long[]>();
+		String prefix = "seg-" + s + "-";
+		String[] names = dir.list();
+		for (String name : names == null ? new String[0] : names) {
+			if (name.endsWith(".tmp")) {
+				new File(dir, name).delete();
+			}
+			else if (name.startsWith(prefix) && name.endsWith(".dat")) {
+				String[] parts = name.substring(prefix.length(), name.length() - 4).split("-");
+				try {
+					found.add(new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				}
+			}
+		}
+
+		// newest (epoch, level) first
+		Collections.sort(found, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(b[1], a[1]);
+			}
+		});
+		ArrayList<Segment> open = new ArrayList<Segment>();
+		boolean covered = false;
+		for (long[] e : found) {
+			File f = segmentFile(s, e[0], (int) e[1]);
+			if (covered) {
+				f.delete();
+				continue;
+			}
+			open.add(Segment.open(f, e[0], (int) e[1]));
+			covered = e[1] > 0;
+		}
+		for (int i = open.size() - 1; i >= 0; i--) {
+			stores[s].addSegment(open.get(i));
+		}
+		return found.isEmpty() ? 0 : found.get(0)[0];
+	}
+
+	/**
+	 * Read log records into the stores until the end or a torn or corrupt
+	 * record
+	 * @param in
+	 * @return number of records read
+	 */
+	private long replay (DataInputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		long n = 0;
+		lastValid = 0;
+		while (true) {
+			byte[] body;
+			try {
+				int length = in.readInt();
+				if (length < 5 || length > 2 * 0x10000 + 5) {
+					break;
+				}
+				body = new byte[length];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body, 0, length);
+				if (in.readInt() != (int) crc.getValue()) {
+					break;
+				}
+			} catch (EOFException e) {
+				break;
+			}
+			int store = body[0];
+			int klen = (body[1] & 0xFF) << 8 | (body[2] & 0xFF);
+			if (store < 0 || store >= stores.length || 5 + klen > body.length) {
+				break;
+			}
+			int vlen = (body[3 + klen] & 0xFF) << 8 | (body[4 + klen] & 0xFF);
+			if (5 + klen + vlen != body.length) {
+				break;
+			}
+			byte[] k = new byte[klen];
+			byte[] v = new byte[vlen];
+			System.arraycopy(body, 3, k, 0, klen);
+			System.arraycopy(body, 5 + klen, v, 0, vlen);
+			stores[store].putBytes(k, v);
+			n++;
+			lastValid += 4 + body.length + 4;
+		}
+		return n;
+	}
+
+	private static byte[] encode (int store, byte[] key, byte[] value) {
+		if (key.length > 0xFFFF || value.length > 0xFFFF) {
+			throw new IllegalArgumentException("Record field longer than 65535 bytes");
+		}
+		int length = 1 + 2 + key.length + 2 + value.length;
+		byte[] record = new byte[4 + length + 4];
+		int p = 0;
+		record[p++] = (byte) (length >> 24);
+		record[p++] = (byte) (length >> 16);
+		record[p++] = (byte) (length >> 8);
+		record[p++] = (byte) length;
+		record[p++] = (byte) store;
+		record[p++] = (byte) (key.length >> 8);
+		record[p++] = (byte) key.length;
+		System.arraycopy(key, 0, record, p, key.length);
+		p += key.length;
+		record[p++] = (byte) (value.length >> 8);
+		record[p++] = (byte) value.length;
+		System.arraycopy(value, 0, record, p, value.length);
+		p += value.length;
+		CRC32 crc = new CRC32();
+		crc.update(record, 4, length);
+		int c = (int) crc.getValue();
+		record[p++] = (byte) (c >> 24);
+		record[p++] = (byte) (c >> 16);
+		record[p++] = (byte) (c >> 8);
+		record[p++] = (byte) c;
+		return record;
+	}
+
+	private ArrayList<Long> logEpochs () {
+		ArrayList<Long> epochs = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("wal-") && name.endsWith(".log")) {
+					try {
+						epochs.add(Long.parseLong(name.substring(4, name.length() - 4)));
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+		Collections.sort(epochs);
+		return epochs;
+	}
+
+	private File segmentFile (int store, long e, int level) {
+		return new File(dir, "seg-" + store + "-" + e + "-" + level + ".dat");
+	}
+
+	private File logFile (long e) {
+		return new File(dir, "wal-" + e + ".log");
+	}
+
+	private FileChannel openLog (long e) throws IOException {
+		return FileChannel.open(logFile(e).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void waitLock () {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}